@@ -1,24 +1,82 @@
 package io.nayuki.mamirc;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 
+/*
+ * Writes raw connection events and processed messages to the database on its own thread,
+ * in posting order. Each database file has one archiver for raw events and another for
+ * messages (see Archivers), so that the bulky raw log never delays the messages that the
+ * web UI waits for; the two differ only in their commit policy. Queued items are held
+ * in memory up to a limit on the estimated size of all archivers' queues together. Beyond that,
+ * new items are handed to a spill thread that appends them to a local file, and the
+ * worker reads them back in order after the in-memory items. So producers never block,
+ * and never wait on disk I/O. Spilling stops once the file is drained.
+ */
 final class Archiver {
 	
 	private final File databaseFile;
-	private BlockingQueue<QueueItem> queue = new LinkedBlockingQueue<>();
-	
+	private final CommitPolicy policy;
 	private final Thread coreWorker;
 	
+	private final long memoryLimit;  // In bytes, for all archivers sharing totalMemoryBytes
+	private final AtomicLong totalMemoryBytes;  // Of the memory queues of those archivers
+	private final File spillFile;
+	
+	// All the fields below are guarded by this object's lock.
+	private Queue<QueueItem> memoryQueue = new ArrayDeque<>();
+	private long memoryQueueBytes = 0;
+	private boolean spilling = false;  // Once set, all new items go to the spill file until it is drained
+	private int spillInFlight = 0;  // Items handed to the spill thread but not yet readable from the file
+	private int spillAvailable = 0;  // Items in the spill file not yet read by the worker
+	private int spillGeneration = 0;  // Incremented whenever the spill file is drained and can be truncated
+	private long spilledItemsTotal = 0;
+	private long spilledBytesTotal = 0;
+	
+	private volatile long commitCount = 0;  // Only written by the worker thread
+	private final Metrics.Histogram batchSize;
+	private final Metrics.Histogram commitTime;
+	private List<LineTraceEvent> batchTraces = new ArrayList<>();  // Only accessed by the worker thread
+	
+	private BlockingQueue<QueueItem> spillQueue = new LinkedBlockingQueue<>();
+	private Thread spillThread;
+	private DataInputStream spillInput = null;  // Only accessed by the worker thread
+	
 	
-	public Archiver(File dbFile, Thread core) {
+	// The memory budget and the metrics are shared with other archivers; see Archivers.
+	// The name distinguishes the spill files of the archivers of one database file.
+	public Archiver(File dbFile, String name, CommitPolicy policy, Thread core, long memLimit, AtomicLong totalMemBytes,
+			Metrics.Histogram batchSize, Metrics.Histogram commitTime) {
 		databaseFile = dbFile;
+		this.policy = Objects.requireNonNull(policy);
 		coreWorker = core;
+		if (memLimit <= 0)
+			throw new IllegalArgumentException("Non-positive memory limit");
+		memoryLimit = memLimit;
+		totalMemoryBytes = Objects.requireNonNull(totalMemBytes);
+		spillFile = new File(dbFile.getPath() + "-archiver-" + name + "-spill");
+		this.batchSize = batchSize;
+		this.commitTime = commitTime;
+		spillThread = new Thread(this::spiller);
+		spillThread.start();
 		new Thread(this::worker).start();
 	}
 	
@@ -28,33 +86,195 @@ final class Archiver {
 			
 			outer:
 			while (true) {
-				QueueItem item = queue.take();
+				QueueItem item = take(true);
+				if (!(item instanceof Termination))
+					linger();
 				database.beginImmediateTransaction();
+				long startTime = System.nanoTime();
+				int count = 0;
 				while (true) {
+					count++;
 					
 					if (item instanceof AugmentedConnectionEvent) {
 						AugmentedConnectionEvent ace = (AugmentedConnectionEvent)item;
+						LineTraceEvent trace = ace.event.trace;
+						if (trace != null) {
+							trace.archiverQueueTime = System.nanoTime() - trace.lastMarkNanos;
+							batchTraces.add(trace);
+						}
 						database.addConnectionEvent(ace.connectionId, ace.event);
 					} else if (item instanceof ProcessedMessage) {
 						ProcessedMessage pm = (ProcessedMessage)item;
 						database.addProcessedMessage(pm.profileId, pm.displayName, pm.timestampUnixMs, pm.data);
+					} else if (item instanceof ProcessorProgress) {
+						ProcessorProgress pp = (ProcessorProgress)item;
+						database.setProcessorProgress(pp.connectionId, pp.nextSequence);
+					} else if (item instanceof ProcessorCheckpoint) {
+						ProcessorCheckpoint pc = (ProcessorCheckpoint)item;
+						if (pc.state.isPresent())
+							database.setProcessorCheckpoint(pc.connectionId, pc.nextSequence, pc.state.get());
+						else
+							database.deleteProcessorCheckpoint(pc.connectionId);
 					} else if (item instanceof Termination) {
-						database.commitTransaction();
+						commit(database, count);
 						break outer;
 					} else
 						throw new AssertionError();
 					
-					if (queue.isEmpty()) {
-						database.commitTransaction();
+					// The archivers of a file share its write lock, so a long transaction would stall the other one
+					if (count >= policy.maxBatchItems || System.nanoTime() - startTime >= policy.maxTransactionNanos) {
+						commit(database, count);
+						break;
+					}
+					item = take(false);
+					if (item == null) {
+						commit(database, count);
 						break;
 					}
-					item = queue.take();
 				}
 			}
 			
 		} catch (IOException|SQLException|InterruptedException e) {
 			coreWorker.interrupt();
 			throw new RuntimeException(e);
+		} finally {
+			spillThread.interrupt();
+			spillFile.delete();
+		}
+	}
+	
+	
+	private void commit(Database database, int itemCount) throws SQLException {
+		long startTime = System.nanoTime();
+		database.commitTransaction();
+		long elapsed = System.nanoTime() - startTime;
+		commitTime.observe(elapsed);
+		batchSize.observe(itemCount);
+		commitCount++;
+		for (LineTraceEvent trace : batchTraces)
+			trace.archived(elapsed);
+		batchTraces.clear();
+	}
+	
+	
+	// Waits until a full batch is queued or the policy's linger time has passed. This happens
+	// outside of any transaction, so it never holds the database's write lock.
+	private synchronized void linger() throws InterruptedException {
+		long deadline = System.nanoTime() + policy.lingerNanos;
+		while (getQueueDepth() + 1 < policy.maxBatchItems) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0)
+				break;
+			wait(Math.max(remaining / 1_000_000, 1));
+		}
+	}
+	
+	
+	// Returns the next item in posting order, or null if none is available and block is false.
+	private QueueItem take(boolean block) throws IOException, InterruptedException {
+		boolean fromSpill = false;
+		boolean drained = false;
+		synchronized(this) {
+			while (true) {
+				if (!memoryQueue.isEmpty()) {
+					QueueItem result = memoryQueue.remove();
+					memoryQueueBytes -= result.estimatedSize();
+					totalMemoryBytes.addAndGet(-result.estimatedSize());
+					return result;
+				}
+				if (spillAvailable > 0) {
+					spillAvailable--;
+					fromSpill = true;
+					break;
+				}
+				if (spilling && spillInFlight == 0) {  // Spill file is drained
+					spilling = false;
+					spillGeneration++;
+					drained = true;
+				}
+				if (!block)
+					break;
+				wait();
+			}
+		}
+		
+		// File operations happen outside of the lock, because producers must not wait on disk I/O
+		if (drained && spillInput != null) {
+			spillInput.close();
+			spillInput = null;
+		}
+		if (!fromSpill)
+			return null;
+		if (spillInput == null)
+			spillInput = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+		return QueueItem.readFrom(spillInput);
+	}
+	
+	
+	private void spiller() {
+		DataOutputStream out = null;
+		int outGeneration = -1;
+		try {
+			while (true) {
+				QueueItem item = spillQueue.take();
+				int generation;
+				synchronized(this) {
+					generation = spillGeneration;
+				}
+				if (generation != outGeneration) {  // Truncate the drained file
+					if (out != null)
+						out.close();
+					out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+					outGeneration = generation;
+				}
+				
+				int count = 0;
+				long bytes = 0;
+				boolean terminate = false;
+				for (; item != null; item = spillQueue.poll()) {
+					bytes += item.writeTo(out);
+					count++;
+					if (item instanceof Termination) {
+						terminate = true;
+						break;
+					}
+				}
+				out.flush();
+				synchronized(this) {
+					spillInFlight -= count;
+					spillAvailable += count;
+					spilledBytesTotal += bytes;
+					notifyAll();
+				}
+				if (terminate)
+					break;
+			}
+		} catch (IOException e) {
+			coreWorker.interrupt();
+			throw new RuntimeException(e);
+		} catch (InterruptedException e) {  // The worker has terminated
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+	
+	
+	private synchronized void post(QueueItem item) {
+		long size = item.estimatedSize();
+		if (!spilling && totalMemoryBytes.get() + size <= memoryLimit) {  // Can overshoot by one item per concurrent poster
+			memoryQueue.add(item);
+			memoryQueueBytes += size;
+			totalMemoryBytes.addAndGet(size);
+			notifyAll();
+		} else {
+			spilling = true;
+			spillInFlight++;
+			spilledItemsTotal++;
+			spillQueue.add(item);
 		}
 	}
 	
@@ -63,11 +283,7 @@ final class Archiver {
 		AugmentedConnectionEvent ace = new AugmentedConnectionEvent();
 		ace.connectionId = conId;
 		ace.event = Objects.requireNonNull(ev);
-		try {
-			queue.put(ace);
-		} catch (InterruptedException e) {
-			throw new AssertionError(e);
-		}
+		post(ace);
 	}
 	
 	
@@ -79,25 +295,155 @@ final class Archiver {
 		pm.displayName = Objects.requireNonNull(displayName);
 		pm.timestampUnixMs = timestampUnixMs;
 		pm.data = Objects.requireNonNull(data);
-		try {
-			queue.put(pm);
-		} catch (InterruptedException e) {
-			throw new AssertionError(e);
-		}
+		post(pm);
+	}
+	
+	
+	// Records that a separate processor has posted the messages of every event of the
+	// connection below the given sequence number. Written in posting order like everything else.
+	public void postProgress(long conId, long nextSequence) {
+		ProcessorProgress pp = new ProcessorProgress();
+		pp.connectionId = conId;
+		pp.nextSequence = nextSequence;
+		post(pp);
+	}
+	
+	
+	// Records a separate processor's connection state after every event below the given sequence number
+	// (see ConnectionState.saveCheckpoint()), or deletes the connection's checkpoint if the state is empty.
+	public void postCheckpoint(long conId, long nextSequence, Optional<byte[]> state) {
+		ProcessorCheckpoint pc = new ProcessorCheckpoint();
+		pc.connectionId = conId;
+		pc.nextSequence = nextSequence;
+		pc.state = Objects.requireNonNull(state);
+		post(pc);
 	}
 	
 	
 	public void postTermination() {
-		try {
-			queue.put(new Termination());
-		} catch (InterruptedException e) {
-			throw new AssertionError(e);
+		post(new Termination());
+	}
+	
+	
+	
+	/*---- Statistics ----*/
+	
+	// Number of items posted but not yet taken by the worker, whether in memory or spilled.
+	public synchronized int getQueueDepth() {
+		return memoryQueue.size() + spillInFlight + spillAvailable;
+	}
+	
+	
+	public synchronized long getMemoryQueueBytes() {
+		return memoryQueueBytes;
+	}
+	
+	
+	public synchronized long getSpilledItemsTotal() {
+		return spilledItemsTotal;
+	}
+	
+	
+	public synchronized long getSpilledBytesTotal() {
+		return spilledBytesTotal;
+	}
+	
+	
+	// Increases after every transaction that the worker commits.
+	public long getCommitCount() {
+		return commitCount;
+	}
+	
+	
+	
+	public enum CommitPolicy {
+		
+		// Commits as soon as the queue is empty, so that new items become visible quickly.
+		LOW_LATENCY(0, Integer.MAX_VALUE, Long.MAX_VALUE),
+		
+		// Waits a little for more items before starting a transaction,
+		// so that a steady trickle is written in fewer and larger transactions.
+		// Each transaction is cut off after a few milliseconds, so that a backlog of raw events
+		// holds the write lock only briefly at a time, and messages can be written in between.
+		HIGH_THROUGHPUT(200_000_000L, 20_000, 5_000_000L);
+		
+		
+		public final long lingerNanos;
+		public final int maxBatchItems;
+		public final long maxTransactionNanos;  // Measured from the start of the transaction to the last item added
+		
+		
+		private CommitPolicy(long lingerNanos, int maxBatchItems, long maxTransactionNanos) {
+			this.lingerNanos = lingerNanos;
+			this.maxBatchItems = maxBatchItems;
+			this.maxTransactionNanos = maxTransactionNanos;
 		}
+		
 	}
 	
 	
 	
-	private static abstract class QueueItem {}
+	private static abstract class QueueItem {
+		
+		// A rough count of heap bytes, which only needs to be consistent for a given item.
+		public abstract long estimatedSize();
+		
+		// Returns the number of bytes written.
+		public abstract int writeTo(DataOutputStream out) throws IOException;
+		
+		
+		public static QueueItem readFrom(DataInputStream in) throws IOException {
+			switch (in.readByte()) {
+				case 'E': {
+					AugmentedConnectionEvent ace = new AugmentedConnectionEvent();
+					ace.connectionId = in.readLong();
+					long timestamp = in.readLong();
+					ace.event = ConnectionEvent.fromBytes(timestamp, readBytes(in));
+					return ace;
+				}
+				case 'M': {
+					ProcessedMessage pm = new ProcessedMessage();
+					pm.profileId = in.readInt();
+					pm.displayName = new String(readBytes(in), StandardCharsets.UTF_8);
+					pm.timestampUnixMs = in.readLong();
+					pm.data = new String(readBytes(in), StandardCharsets.UTF_8);
+					return pm;
+				}
+				case 'P': {
+					ProcessorProgress pp = new ProcessorProgress();
+					pp.connectionId = in.readLong();
+					pp.nextSequence = in.readLong();
+					return pp;
+				}
+				case 'C': {
+					ProcessorCheckpoint pc = new ProcessorCheckpoint();
+					pc.connectionId = in.readLong();
+					pc.nextSequence = in.readLong();
+					pc.state = in.readBoolean() ? Optional.of(readBytes(in)) : Optional.empty();
+					return pc;
+				}
+				case 'T':
+					return new Termination();
+				default:
+					throw new IOException("Corrupt spill file");
+			}
+		}
+		
+		
+		protected static int writeBytes(DataOutputStream out, byte[] b) throws IOException {
+			out.writeInt(b.length);
+			out.write(b);
+			return b.length + 4;
+		}
+		
+		
+		private static byte[] readBytes(DataInputStream in) throws IOException {
+			byte[] result = new byte[in.readInt()];
+			in.readFully(result);
+			return result;
+		}
+		
+	}
 	
 	
 	
@@ -106,6 +452,24 @@ final class Archiver {
 		public long connectionId;
 		public ConnectionEvent event;
 		
+		
+		public long estimatedSize() {
+			if (event instanceof ConnectionEvent.LineReceived)
+				return ((ConnectionEvent.LineReceived)event).line.length + 80;
+			else if (event instanceof ConnectionEvent.LineSent)
+				return ((ConnectionEvent.LineSent)event).line.length + 80;
+			else
+				return 200;
+		}
+		
+		
+		public int writeTo(DataOutputStream out) throws IOException {
+			out.writeByte('E');
+			out.writeLong(connectionId);
+			out.writeLong(event.timestampUnixMs);
+			return 17 + writeBytes(out, event.toBytes());
+		}
+		
 	}
 	
 	
@@ -117,10 +481,82 @@ final class Archiver {
 		public long timestampUnixMs;
 		public String data;
 		
+		
+		public long estimatedSize() {
+			return (displayName.length() + data.length()) * 2L + 120;
+		}
+		
+		
+		public int writeTo(DataOutputStream out) throws IOException {
+			out.writeByte('M');
+			out.writeInt(profileId);
+			int result = 13 + writeBytes(out, displayName.getBytes(StandardCharsets.UTF_8));
+			out.writeLong(timestampUnixMs);
+			return result + writeBytes(out, data.getBytes(StandardCharsets.UTF_8));
+		}
+		
+	}
+	
+	
+	
+	private static final class ProcessorProgress extends QueueItem {
+		
+		public long connectionId;
+		public long nextSequence;
+		
+		
+		public long estimatedSize() {
+			return 40;
+		}
+		
+		
+		public int writeTo(DataOutputStream out) throws IOException {
+			out.writeByte('P');
+			out.writeLong(connectionId);
+			out.writeLong(nextSequence);
+			return 17;
+		}
+		
+	}
+	
+	
+	
+	private static final class ProcessorCheckpoint extends QueueItem {
+		
+		public long connectionId;
+		public long nextSequence;
+		public Optional<byte[]> state;
+		
+		
+		public long estimatedSize() {
+			return state.map(b -> b.length).orElse(0) + 60L;
+		}
+		
+		
+		public int writeTo(DataOutputStream out) throws IOException {
+			out.writeByte('C');
+			out.writeLong(connectionId);
+			out.writeLong(nextSequence);
+			out.writeBoolean(state.isPresent());
+			return 18 + (state.isPresent() ? writeBytes(out, state.get()) : 0);
+		}
+		
 	}
 	
 	
 	
-	private static final class Termination extends QueueItem {}
+	private static final class Termination extends QueueItem {
+		
+		public long estimatedSize() {
+			return 0;
+		}
+		
+		
+		public int writeTo(DataOutputStream out) throws IOException {
+			out.writeByte('T');
+			return 1;
+		}
+		
+	}
 	
 }
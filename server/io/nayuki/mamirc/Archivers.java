@@ -0,0 +1,146 @@
+package io.nayuki.mamirc;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/*
+ * Two archivers per database file (see DatabaseShards), each with its own thread, created on
+ * first use: one for raw events that favors throughput, and one for processed messages (and
+ * processor progress) that favors commit latency. Each keeps its own stream in order, but
+ * there is no ordering between the two streams. Their metrics are exported together:
+ * the per-transaction histograms are labeled by archiver (e.g. "main/events" or "3/messages"),
+ * and the queue statistics are totals over all archivers. The memory limit applies to the
+ * in-memory queues of all archivers together, however many files there are. Thread-safe.
+ */
+final class Archivers {
+	
+	private final DatabaseShards shards;
+	private final Thread coreWorker;
+	private final long memoryLimit;  // In bytes, for all archivers together
+	private final AtomicLong totalMemoryBytes = new AtomicLong();
+	
+	private final Metrics.Labeled<Metrics.Histogram> batchSize;
+	private final Metrics.Labeled<Metrics.Histogram> commitTime;
+	
+	// Both guarded by this object's lock
+	private Map<File,Archiver> eventArchivers = new HashMap<>();
+	private Map<File,Archiver> messageArchivers = new HashMap<>();
+	private boolean terminated = false;
+	private long otherCommits = 0;
+	
+	
+	public Archivers(DatabaseShards shards, Thread core, long memLimit, Metrics metrics) {
+		this.shards = shards;
+		coreWorker = core;
+		memoryLimit = memLimit;
+		batchSize = metrics.newLabeledHistogram("mamirc_archiver_batch_items", "Items written per archiver transaction",
+			"archiver", MAX_ARCHIVER_LABELS, Metrics.COUNT_BUCKETS, 1);
+		commitTime = metrics.newLabeledHistogram("mamirc_archiver_commit_seconds", "Time to commit one archiver transaction",
+			"archiver", MAX_ARCHIVER_LABELS, Metrics.LATENCY_BUCKETS_NS, Metrics.NANOSECONDS_TO_SECONDS);
+		metrics.newGauge("mamirc_archiver_queue_depth", "Items posted to the archivers but not yet written", this::getQueueDepth);
+		metrics.newGauge("mamirc_archiver_memory_queue_bytes", "Estimated size of the archivers' in-memory queues", this::getMemoryQueueBytes);
+		metrics.newCounter("mamirc_archiver_spilled_items_total", "Items that overflowed an archiver's memory queue into its spill file", this::getSpilledItemsTotal);
+		metrics.newCounter("mamirc_archiver_spilled_bytes_total", "Bytes written to the archivers' spill files", this::getSpilledBytesTotal);
+	}
+	
+	
+	// Returns the archiver for new raw events of the given profile.
+	public Archiver getEventArchiver(int profileId) throws IOException, SQLException {
+		return get(shards.getProfileFile(profileId), eventArchivers, "events", Archiver.CommitPolicy.HIGH_THROUGHPUT);
+	}
+	
+	
+	// Returns the archiver for new processed messages, processor progress and processor checkpoints of the given profile.
+	public Archiver getMessageArchiver(int profileId) throws IOException, SQLException {
+		return get(shards.getProfileFile(profileId), messageArchivers, "messages", Archiver.CommitPolicy.LOW_LATENCY);
+	}
+	
+	
+	private synchronized Archiver get(File dbFile, Map<File,Archiver> archivers, String name, Archiver.CommitPolicy policy) {
+		if (terminated)
+			throw new IllegalStateException("Archivers terminated");
+		Archiver result = archivers.get(dbFile);
+		if (result == null) {
+			String key = shards.getShardKey(dbFile) + "/" + name;
+			result = new Archiver(dbFile, name, policy, coreWorker, memoryLimit, totalMemoryBytes, batchSize.get(key), commitTime.get(key));
+			archivers.put(dbFile, result);
+		}
+		return result;
+	}
+	
+	
+	// Each archiver writes everything posted to it before this, then stops.
+	public synchronized void postTermination() {
+		terminated = true;
+		for (Archiver arch : getAll())
+			arch.postTermination();
+	}
+	
+	
+	private List<Archiver> getAll() {
+		List<Archiver> result = new ArrayList<>(eventArchivers.values());
+		result.addAll(messageArchivers.values());
+		return result;
+	}
+	
+	
+	
+	/*---- Statistics (totals over all archivers) ----*/
+	
+	public synchronized long getQueueDepth() {
+		long result = 0;
+		for (Archiver arch : getAll())
+			result += arch.getQueueDepth();
+		return result;
+	}
+	
+	
+	public synchronized long getMemoryQueueBytes() {
+		long result = 0;
+		for (Archiver arch : getAll())
+			result += arch.getMemoryQueueBytes();
+		return result;
+	}
+	
+	
+	public synchronized long getSpilledItemsTotal() {
+		long result = 0;
+		for (Archiver arch : getAll())
+			result += arch.getSpilledItemsTotal();
+		return result;
+	}
+	
+	
+	public synchronized long getSpilledBytesTotal() {
+		long result = 0;
+		for (Archiver arch : getAll())
+			result += arch.getSpilledBytesTotal();
+		return result;
+	}
+	
+	
+	// Called after committing a transaction that did not go through any archiver (e.g. a retention deletion).
+	public synchronized void countOtherCommit() {
+		otherCommits++;
+	}
+	
+	
+	// Increases after every transaction that any archiver commits, and on countOtherCommit().
+	public synchronized long getCommitCount() {
+		long result = otherCommits;
+		for (Archiver arch : getAll())
+			result += arch.getCommitCount();
+		return result;
+	}
+	
+	
+	private static final int MAX_ARCHIVER_LABELS = 2000;
+	
+}
@@ -3,8 +3,10 @@ package io.nayuki.mamirc;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 
@@ -12,9 +14,58 @@ abstract class ConnectionEvent {
 	
 	public long timestampUnixMs = System.currentTimeMillis();
 	
+	public LineTraceEvent trace = null;  // Only for received lines, and only while the JFR event is enabled
+	
 	public abstract byte[] toBytes();
 	
 	
+	// Inverse of toBytes(). The timestamp is not part of the serialized data, so it is supplied separately.
+	public static ConnectionEvent fromBytes(long timestampUnixMs, byte[] data) {
+		ConnectionEvent result;
+		if (data.length >= 1 && data[0] == 'R')
+			result = new LineReceived(Arrays.copyOfRange(data, 1, data.length));
+		else if (data.length >= 1 && data[0] == 'S')
+			result = new LineSent(Arrays.copyOfRange(data, 1, data.length));
+		else {
+			String[] parts = new String(data, StandardCharsets.UTF_8).split("\n", -1);
+			switch (parts[0]) {
+				case "opening": {
+					if (parts.length != 4)
+						throw new IllegalArgumentException("Invalid opening event");
+					result = new Opening(parts[1], Integer.parseInt(parts[2]), parts[3]);
+					break;
+				}
+				case "opened": {
+					if (parts.length != 2)
+						throw new IllegalArgumentException("Invalid opened event");
+					try {
+						result = new Opened(InetAddress.getByName(parts[1]));  // Numeric literal, so no DNS lookup
+					} catch (UnknownHostException e) {
+						throw new IllegalArgumentException("Invalid IP address", e);
+					}
+					break;
+				}
+				case "read exception":
+					result = new ReadException(String.join("\n", Arrays.asList(parts).subList(1, parts.length)));
+					break;
+				case "write exception":
+					result = new WriteException(String.join("\n", Arrays.asList(parts).subList(1, parts.length)));
+					break;
+				case "closing":
+					result = new Closing();
+					break;
+				case "closed":
+					result = new Closed();
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown event type");
+			}
+		}
+		result.timestampUnixMs = timestampUnixMs;
+		return result;
+	}
+	
+	
 	
 	/*---- Subclasses ----*/
 	
@@ -1,13 +1,20 @@
 package io.nayuki.mamirc;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -25,8 +32,9 @@ class ConnectionState {
 	public final long connectionId;
 	public final int profileId;
 	private Optional<Charset> charset = Optional.empty();
+	private Optional<LineDecoder> decoder = Optional.empty();
 	
-	protected Core core;
+	private final File databaseFile;
 	
 	private boolean isRegistrationHandled = false;
 	private Set<String> rejectedNicknames = new HashSet<>();
@@ -39,22 +47,41 @@ class ConnectionState {
 	
 	private Map<String,IrcChannel> joinedChannels = new HashMap<>();
 	
-	private Archiver archiver;
+	private Optional<String> lagProbeToken = Optional.empty();  // Present while a probe awaits its PONG
+	private long lagProbeSentTime;  // In System.nanoTime() units
+	private long lagProbeCount = 0;
 	
+	private String lastEventType = "";  // For metrics; an IRC command or a fixed name, never null
 	
-	public ConnectionState(long connectionId, int profileId, Core core, Archiver archiver) {
+	// Netsplit coalescing: the QUITs of a netsplit, or the JOINs of the users rejoining afterward,
+	// are collected into one message per channel until the burst ends. Only event timestamps are
+	// used, so that replaying the same events produces the same messages (except that on a live
+	// connection, flushIdleBurst() may end a burst just before an event that would have extended it).
+	private Optional<Burst> burst = Optional.empty();
+	private Map<String,Long> splitNicknames = new HashMap<>();  // Users who left in a netsplit and have not rejoined, with the time
+	
+	
+	public ConnectionState(long connectionId, int profileId, File dbFile) {
 		this.connectionId = connectionId;
 		this.profileId = profileId;
-		this.core = Objects.requireNonNull(core);
-		this.archiver = Objects.requireNonNull(archiver);
+		this.databaseFile = Objects.requireNonNull(dbFile);
 	}
 	
 	
 	public void handle(ConnectionEvent ev) {
+		lastEventType = "other";
+		// Any message that is not part of the burst also ends it, in addMessage()
+		if (ev instanceof ConnectionEvent.Closed)
+			flushBurst();
+		else
+			flushIdleBurst(ev.timestampUnixMs);
 		if (ev instanceof ConnectionEvent.Opening) {
+			lastEventType = "opening";
 			charset = Optional.of(Charset.forName(((ConnectionEvent.Opening)ev).characterEncoding));
+			decoder = Optional.of(new LineDecoder(charset.get()));
 		} else if (ev instanceof ConnectionEvent.Opened) {
-			try (Database db = new Database(core.getDatabaseFile())) {
+			lastEventType = "opened";
+			try (Database db = new Database(databaseFile)) {
 				send("NICK", db.getProfileNicknames(profileId).get(0));
 				send("USER", db.getProfileUsername(profileId), "0", "*", db.getProfileRealName(profileId));
 			} catch (IOException|SQLException e) {
@@ -62,15 +89,167 @@ class ConnectionState {
 				close();
 			}
 		} else if (ev instanceof ConnectionEvent.LineReceived) {
-			String line = new String(((ConnectionEvent.LineReceived)ev).line, charset.get());
-			handleLineReceived(IrcMessage.parseLine(line), ev);
+			lastEventType = "line_received";  // Until it parses
+			String line = decoder.get().decode(((ConnectionEvent.LineReceived)ev).line);
+			IrcMessage msg = IrcMessage.parseLine(line);
+			lastEventType = msg.command;
+			handleLineReceived(msg, ev);
 		} else if (ev instanceof ConnectionEvent.LineSent) {
-			String line = new String(((ConnectionEvent.LineSent)ev).line, charset.get());
+			lastEventType = "line_sent";
+			String line = decoder.get().decode(((ConnectionEvent.LineSent)ev).line);
 			handleLineSent(IrcMessage.parseLine(line), ev);
 		}
 	}
 	
 	
+	// Returns whether the server has accepted our registration (RPL_WELCOME) on this connection.
+	public boolean isRegistered() {
+		return isRegistrationHandled;
+	}
+	
+	
+	// Sends a PING with a unique token, whose PONG is timed by handleLineReceived(). Does nothing
+	// if registration is not complete or a probe is still outstanding, so at most one is in flight.
+	public void sendLagProbe() {
+		if (!isRegistrationHandled || lagProbeToken.isPresent())
+			return;
+		String token = "mamirc-lag-" + lagProbeCount;
+		lagProbeCount++;
+		lagProbeToken = Optional.of(token);
+		lagProbeSentTime = System.nanoTime();
+		send("PING", token);
+	}
+	
+	
+	// Returns how long the outstanding lag probe has waited for its PONG in nanoseconds, or 0 if none is outstanding.
+	public long getPendingLag() {
+		return lagProbeToken.isPresent() ? System.nanoTime() - lagProbeSentTime : 0;
+	}
+	
+	
+	// Returns a label for the most recently handled event: the command of a received line, or a fixed name.
+	public String getLastEventType() {
+		return lastEventType;
+	}
+	
+	
+	// Serializes everything that the events so far have built up, so that another object for the same
+	// connection can continue from the next event after restoreCheckpoint(), exactly as this one would.
+	// The lag probe is left out, because it only concerns the live connection that sent it.
+	public byte[] saveCheckpoint() {
+		try {
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bout);
+			out.writeByte(CHECKPOINT_VERSION);
+			writeOptionalString(out, charset.map(Charset::name));
+			out.writeBoolean(isRegistrationHandled);
+			writeStrings(out, rejectedNicknames);
+			writeOptionalString(out, currentNickname);
+			out.writeInt(nicknamePrefixToMode.size());
+			for (Map.Entry<String,String> entry : nicknamePrefixToMode.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeUTF(entry.getValue());
+			}
+			out.writeInt(channelModeTypes.size());
+			for (Map.Entry<String,ChannelModeType> entry : channelModeTypes.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeByte(entry.getValue().ordinal());
+			}
+			
+			out.writeInt(joinedChannels.size());
+			for (Map.Entry<String,IrcChannel> entry : joinedChannels.entrySet()) {
+				IrcChannel chan = entry.getValue();
+				out.writeUTF(entry.getKey());
+				writeOptionalString(out, chan.topic);
+				writeOptionalString(out, chan.topicSetter);
+				out.writeBoolean(chan.topicTimestamp.isPresent());
+				if (chan.topicTimestamp.isPresent())
+					out.writeLong(chan.topicTimestamp.get());
+				writeUsers(out, chan.users);
+				writeUsers(out, chan.namesAccumulator);
+			}
+			
+			out.writeBoolean(burst.isPresent());
+			if (burst.isPresent()) {
+				Burst b = burst.get();
+				out.writeUTF(b.kind);
+				out.writeUTF(b.reason);
+				out.writeLong(b.lastTimestampUnixMs);
+				out.writeInt(b.users.size());
+				for (Map.Entry<String,List<String>> entry : b.users.entrySet()) {
+					out.writeUTF(entry.getKey());
+					out.writeLong(b.firstTimestamps.get(entry.getKey()));
+					writeStrings(out, entry.getValue());
+				}
+				writeStrings(out, b.nicknames);
+			}
+			out.writeInt(splitNicknames.size());
+			for (Map.Entry<String,Long> entry : splitNicknames.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeLong(entry.getValue());
+			}
+			out.flush();
+			return bout.toByteArray();
+		} catch (IOException e) {
+			throw new AssertionError(e);  // Impossible for a byte array
+		}
+	}
+	
+	
+	// Replaces the state of this object (which must not have handled any event yet) with the given checkpoint
+	// from saveCheckpoint(). Throws IOException if the data is malformed or from an incompatible version.
+	public void restoreCheckpoint(byte[] checkpoint) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(checkpoint));
+		if (in.readByte() != CHECKPOINT_VERSION)
+			throw new IOException("Unsupported checkpoint version");
+		try {
+			charset = readOptionalString(in).map(Charset::forName);
+			decoder = charset.map(LineDecoder::new);
+			isRegistrationHandled = in.readBoolean();
+			rejectedNicknames = readStrings(in, new HashSet<>());
+			currentNickname = readOptionalString(in);
+			nicknamePrefixToMode = new HashMap<>();
+			for (int i = in.readInt(); i > 0; i--)
+				nicknamePrefixToMode.put(in.readUTF(), in.readUTF());
+			channelModeTypes = new HashMap<>();
+			for (int i = in.readInt(); i > 0; i--)
+				channelModeTypes.put(in.readUTF(), ChannelModeType.values()[in.readByte()]);
+			
+			joinedChannels = new HashMap<>();
+			for (int i = in.readInt(); i > 0; i--) {
+				String name = in.readUTF();
+				IrcChannel chan = new IrcChannel();
+				chan.topic = readOptionalString(in);
+				chan.topicSetter = readOptionalString(in);
+				chan.topicTimestamp = in.readBoolean() ? Optional.of(in.readLong()) : Optional.empty();
+				chan.users = readUsers(in);
+				chan.namesAccumulator = readUsers(in);
+				joinedChannels.put(name, chan);
+			}
+			
+			burst = Optional.empty();
+			if (in.readBoolean()) {
+				Burst b = new Burst(in.readUTF(), in.readUTF());
+				b.lastTimestampUnixMs = in.readLong();
+				for (int i = in.readInt(); i > 0; i--) {
+					String window = in.readUTF();
+					b.firstTimestamps.put(window, in.readLong());
+					b.users.put(window, readStrings(in, new ArrayList<>()));
+				}
+				b.nicknames = readStrings(in, new HashSet<>());
+				burst = Optional.of(b);
+			}
+			splitNicknames = new HashMap<>();
+			for (int i = in.readInt(); i > 0; i--)
+				splitNicknames.put(in.readUTF(), in.readLong());
+		} catch (IllegalArgumentException|IndexOutOfBoundsException e) {  // Unknown charset or enum value
+			throw new IOException("Malformed checkpoint", e);
+		}
+		if (in.available() > 0)
+			throw new IOException("Malformed checkpoint");
+	}
+	
+	
 	private void handleLineReceived(IrcMessage msg, ConnectionEvent ev) {
 		Optional<IrcMessage.Prefix> prefix = msg.prefix;
 		List<String> params = msg.parameters;
@@ -94,7 +273,11 @@ class ConnectionState {
 						throw new IrcStateException("JOIN " + who + " to " + chan + " which myself is not in");
 					if (chanState.users.put(who, new IrcChannel.User()) != null)
 						throw new IrcStateException("JOIN " + who + " already in " + chan);
-					addMessage(chan, ev, "R_JOIN", prefix.get().toString(), (isMe ? "me" : "other"));
+					Long splitTime = splitNicknames.get(who);
+					if (!isMe && splitTime != null && ev.timestampUnixMs - splitTime <= NETJOIN_WINDOW_MS)
+						addToBurst("R_NETJOIN", "", chan, ev, who, prefix.get().toString());
+					else
+						addMessage(chan, ev, "R_JOIN", prefix.get().toString(), (isMe ? "me" : "other"));
 				}
 				break;
 			}
@@ -200,6 +383,12 @@ class ConnectionState {
 						throw new IllegalStateException();
 					boolean isMe = fromName.equals(currentNickname.get());
 					String[] dataParts = {"R_NICK", fromName, toName, (isMe ? "me" : "other")};
+					// A split user who is back (and renamed) keeps their netjoin; anyone else taking a split name does not get it
+					Long splitTime = splitNicknames.remove(fromName);
+					if (splitTime != null)
+						splitNicknames.put(toName, splitTime);
+					else
+						splitNicknames.remove(toName);
 					if (isMe) {
 						currentNickname = Optional.of(toName);
 						addMessage(SERVER_WINDOW_NAME, ev, dataParts);
@@ -259,6 +448,14 @@ class ConnectionState {
 				break;
 			}
 			
+			case "PONG": {
+				if (paramsLen >= 1 && lagProbeToken.isPresent() && params.get(paramsLen - 1).equals(lagProbeToken.get())) {
+					lagProbeToken = Optional.empty();
+					lagMeasured(System.nanoTime() - lagProbeSentTime);
+				}
+				break;
+			}
+			
 			case "PRIVMSG": {
 				if (prefix.isEmpty())
 					throw new IrcSyntaxException("PRIVMSG message expects prefix");
@@ -281,6 +478,15 @@ class ConnectionState {
 				Collections.addAll(dataParts, "R_QUIT", prefix.get().toString(), (isMe ? "me" : "other"));
 				if (paramsLen == 1)
 					dataParts.add(params.get(0));
+				if (!isMe && paramsLen == 1 && NETSPLIT_REASON.matcher(params.get(0)).matches()) {
+					for (Map.Entry<String,IrcChannel> entry : joinedChannels.entrySet()) {
+						if (entry.getValue().users.remove(who) != null) {
+							addToBurst("R_NETSPLIT", params.get(0), entry.getKey(), ev, who, prefix.get().toString());
+							splitNicknames.put(who, ev.timestampUnixMs);
+						}
+					}
+					break;
+				}
 				if (isMe)
 					addMessage(SERVER_WINDOW_NAME, ev, dataParts);
 				for (Map.Entry<String,IrcChannel> entry : joinedChannels.entrySet()) {
@@ -295,7 +501,7 @@ class ConnectionState {
 			case "003":  // RPL_CREATED
 			case "004": {  // RPL_MYINFO
 				if (!isRegistrationHandled) {
-					try (Database db = new Database(core.getDatabaseFile())) {
+					try (Database db = new Database(databaseFile)) {
 						for (String cmd : db.getProfileAfterRegistrationCommands(profileId))
 							send(IrcMessage.parseLine(cmd));
 					} catch (IOException|SQLException e) {
@@ -449,7 +655,7 @@ class ConnectionState {
 						throw new IrcStateException("ERR_NICKNAMEINUSE/ERR_ERRONEUSNICKNAME without current nickname");
 					rejectedNicknames.add(currentNickname.get());
 					List<String> nicknames;
-					try (Database db = new Database(core.getDatabaseFile())) {
+					try (Database db = new Database(databaseFile)) {
 						nicknames = db.getProfileNicknames(profileId);
 					} catch (IOException|SQLException e) {
 						e.printStackTrace();
@@ -539,6 +745,13 @@ class ConnectionState {
 	protected void close() {}
 	
 	
+	// Called when the PONG for a lag probe arrives.
+	protected void lagMeasured(long roundTripNanos) {}
+	
+	
+	protected void postMessage(int profileId, String windowDisplayName, long timestampUnixMs, String data) {}
+	
+	
 	private void addMessage(String windowDisplayName, ConnectionEvent ev, String... dataParts) {
 		addMessage(windowDisplayName, ev, Arrays.asList(dataParts));
 	}
@@ -547,7 +760,8 @@ class ConnectionState {
 	private void addMessage(String windowDisplayName, ConnectionEvent ev, List<String> dataParts) {
 		if (Objects.requireNonNull(dataParts).size() == 0)
 			throw new IllegalArgumentException("Empty data parts");
-		archiver.postMessage(
+		flushBurst();  // Keep the messages in chronological order
+		postMessage(
 			profileId,
 			Objects.requireNonNull(windowDisplayName),
 			Objects.requireNonNull(ev).timestampUnixMs,
@@ -555,6 +769,57 @@ class ConnectionState {
 	}
 	
 	
+	// Ends the pending burst if nothing has extended it for longer than the gap, as the next event would. A live
+	// connection also calls this periodically, so that a quiet connection does not hold back the burst's messages
+	// until its next event. Must be called under the same lock (or on the same thread) as handle().
+	public void flushIdleBurst(long nowUnixMs) {
+		if (burst.isPresent() && nowUnixMs - burst.get().lastTimestampUnixMs > BURST_GAP_MS)
+			flushBurst();
+	}
+	
+	
+	// Kind is R_NETSPLIT (with the QUIT reason) or R_NETJOIN (with an empty reason). A burst of another kind or reason is flushed first.
+	private void addToBurst(String kind, String reason, String windowDisplayName, ConnectionEvent ev, String nickname, String userPrefix) {
+		if (burst.isPresent() && !(burst.get().kind.equals(kind) && burst.get().reason.equals(reason)))
+			flushBurst();
+		if (burst.isEmpty())
+			burst = Optional.of(new Burst(kind, reason));
+		Burst b = burst.get();
+		b.lastTimestampUnixMs = ev.timestampUnixMs;
+		b.firstTimestamps.putIfAbsent(windowDisplayName, ev.timestampUnixMs);
+		b.users.computeIfAbsent(windowDisplayName, k -> new ArrayList<>()).add(userPrefix);
+		b.nicknames.add(nickname);
+	}
+	
+	
+	// Posts one message per channel of the pending burst, if any: "R_NETSPLIT", reason, user prefixes...;
+	// or "R_NETJOIN", user prefixes... A channel with only one user gets the usual R_QUIT or R_JOIN instead.
+	private void flushBurst() {
+		if (burst.isEmpty())
+			return;
+		Burst b = burst.get();
+		burst = Optional.empty();
+		for (Map.Entry<String,List<String>> entry : b.users.entrySet()) {
+			List<String> users = entry.getValue();
+			List<String> dataParts = new ArrayList<>();
+			if (users.size() == 1 && b.kind.equals("R_NETSPLIT"))
+				Collections.addAll(dataParts, "R_QUIT", users.get(0), "other", b.reason);
+			else if (users.size() == 1)
+				Collections.addAll(dataParts, "R_JOIN", users.get(0), "other");
+			else {
+				dataParts.add(b.kind);
+				if (b.kind.equals("R_NETSPLIT"))
+					dataParts.add(b.reason);
+				dataParts.addAll(users);
+			}
+			postMessage(profileId, entry.getKey(), b.firstTimestamps.get(entry.getKey()), String.join("\n", dataParts));
+		}
+		if (b.kind.equals("R_NETJOIN"))
+			splitNicknames.keySet().removeAll(b.nicknames);  // They have rejoined
+		splitNicknames.values().removeIf(t -> b.lastTimestampUnixMs - t > NETJOIN_WINDOW_MS);
+	}
+	
+	
 	// For channel names and nicknames.
 	public static String toCanonicalCase(String s) {
 		return s.codePoints()
@@ -574,8 +839,64 @@ class ConnectionState {
 	}
 	
 	
+	private static void writeOptionalString(DataOutputStream out, Optional<String> s) throws IOException {
+		out.writeBoolean(s.isPresent());
+		if (s.isPresent())
+			out.writeUTF(s.get());
+	}
+	
+	
+	private static Optional<String> readOptionalString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? Optional.of(in.readUTF()) : Optional.empty();
+	}
+	
+	
+	private static void writeStrings(DataOutputStream out, Collection<String> strs) throws IOException {
+		out.writeInt(strs.size());
+		for (String s : strs)
+			out.writeUTF(s);
+	}
+	
+	
+	private static <C extends Collection<String>> C readStrings(DataInputStream in, C result) throws IOException {
+		for (int i = in.readInt(); i > 0; i--)
+			result.add(in.readUTF());
+		return result;
+	}
+	
+	
+	private static void writeUsers(DataOutputStream out, Map<String,IrcChannel.User> users) throws IOException {
+		out.writeInt(users.size());
+		for (Map.Entry<String,IrcChannel.User> entry : users.entrySet()) {
+			out.writeUTF(entry.getKey());
+			writeStrings(out, entry.getValue().modes);
+		}
+	}
+	
+	
+	private static Map<String,IrcChannel.User> readUsers(DataInputStream in) throws IOException {
+		Map<String,IrcChannel.User> result = new HashMap<>();
+		for (int i = in.readInt(); i > 0; i--) {
+			String name = in.readUTF();
+			IrcChannel.User user = new IrcChannel.User();
+			user.modes = readStrings(in, new HashSet<>());
+			result.put(name, user);
+		}
+		return result;
+	}
+	
+	
 	private static final String SERVER_WINDOW_NAME = "";  // Special value, do not modify
 	
+	// A QUIT reason like "irc.example.net hub.example.org" (or "*.net *.split") is sent by the server
+	// itself when a netsplit disconnects the user, because user-supplied reasons get a "Quit: " prefix.
+	private static final Pattern NETSPLIT_REASON = Pattern.compile("[A-Za-z0-9*_-]+(\\.[A-Za-z0-9*_-]+)+ [A-Za-z0-9*_-]+(\\.[A-Za-z0-9*_-]+)+");
+	
+	private static final long BURST_GAP_MS = 5_000;  // A longer pause between events ends a burst
+	private static final long NETJOIN_WINDOW_MS = 3_600_000;  // How long after a netsplit a JOIN counts as its netjoin
+	
+	private static final byte CHECKPOINT_VERSION = 1;  // Of the format of saveCheckpoint()
+	
 	
 	
 	private enum ChannelModeType {
@@ -585,4 +906,23 @@ class ConnectionState {
 		NO_PARAMETER,
 	}
 	
+	
+	
+	private static final class Burst {
+		
+		public final String kind;
+		public final String reason;
+		public long lastTimestampUnixMs;
+		public Map<String,List<String>> users = new LinkedHashMap<>();  // Keyed by window display name, in order of first appearance
+		public Map<String,Long> firstTimestamps = new HashMap<>();  // Same keys
+		public Set<String> nicknames = new HashSet<>();  // Of all the users
+		
+		
+		public Burst(String kind, String reason) {
+			this.kind = kind;
+			this.reason = reason;
+		}
+		
+	}
+	
 }
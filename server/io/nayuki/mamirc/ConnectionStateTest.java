@@ -0,0 +1,155 @@
+package io.nayuki.mamirc;
+
+import static org.junit.Assert.assertEquals;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+
+public final class ConnectionStateTest {
+	
+	@Test public void testNetsplitCoalesced() {
+		Recorder rec = joinedWithUsers(1000, "alice", "bob", "carol");
+		rec.receive(1100, ":alice!a@x QUIT :hub.example.net leaf.example.net");
+		rec.receive(1200, ":bob!b@x QUIT :hub.example.net leaf.example.net");
+		rec.receive(1300, ":carol!c@x QUIT :hub.example.net leaf.example.net");
+		assertEquals(0, rec.messages.size());  // Still collecting
+		rec.receive(1400, ":dave!d@x PRIVMSG #chan :hi");
+		assertEquals(List.of(
+			"#chan@1100 R_NETSPLIT|hub.example.net leaf.example.net|alice!a@x|bob!b@x|carol!c@x",
+			"#chan@1400 R_PRIVMSG|dave!d@x|hi"), rec.messages);
+	}
+	
+	@Test public void testNetjoinCoalesced() {
+		Recorder rec = joinedWithUsers(1000, "alice", "bob");
+		rec.receive(1100, ":alice!a@x QUIT :*.net *.split");
+		rec.receive(1100, ":bob!b@x QUIT :*.net *.split");
+		rec.receive(60000, ":alice!a@x JOIN #chan");
+		rec.receive(60100, ":bob!b@x JOIN #chan");
+		rec.receive(70000, "PING :x");  // Ends the burst by the gap alone
+		assertEquals(List.of(
+			"#chan@1100 R_NETSPLIT|*.net *.split|alice!a@x|bob!b@x",
+			"#chan@60000 R_NETJOIN|alice!a@x|bob!b@x"), rec.messages);
+	}
+	
+	@Test public void testSingleUserKeepsUsualForm() {
+		Recorder rec = joinedWithUsers(1000, "alice", "bob");
+		rec.receive(1100, ":alice!a@x QUIT :hub.example.net leaf.example.net");
+		rec.receive(1200, ":bob!b@x QUIT :Quit: bye");
+		assertEquals(List.of(
+			"#chan@1100 R_QUIT|alice!a@x|other|hub.example.net leaf.example.net",
+			"#chan@1200 R_QUIT|bob!b@x|other|Quit: bye"), rec.messages);
+	}
+	
+	@Test public void testMembershipStillExact() {
+		Recorder rec = joinedWithUsers(1000, "alice", "bob");
+		rec.receive(1100, ":alice!a@x QUIT :hub.example.net leaf.example.net");
+		rec.receive(1200, ":bob!b@x QUIT :hub.example.net leaf.example.net");
+		rec.receive(1300, ":alice!a@x JOIN #chan");  // Would throw if alice were still a member
+		rec.receive(1400, ":carol!c@x JOIN #chan");  // Not split, so an ordinary join
+		assertEquals(List.of(
+			"#chan@1100 R_NETSPLIT|hub.example.net leaf.example.net|alice!a@x|bob!b@x",
+			"#chan@1300 R_JOIN|alice!a@x|other",
+			"#chan@1400 R_JOIN|carol!c@x|other"), rec.messages);
+	}
+	
+	@Test public void testRejoinedUsersForgotten() {
+		Recorder rec = joinedWithUsers(1000, "alice", "bob");
+		rec.receive(1100, ":alice!a@x QUIT :hub.example.net leaf.example.net");
+		rec.receive(1100, ":bob!b@x QUIT :hub.example.net leaf.example.net");
+		rec.receive(60000, ":alice!a@x JOIN #chan");
+		rec.receive(60000, ":bob!b@x JOIN #chan");
+		rec.receive(70000, ":alice!a@x PART #chan");
+		rec.receive(70000, ":bob!b@x PART #chan");
+		rec.receive(80000, ":alice!a@x JOIN #chan");  // Within the netjoin window, but no longer split
+		rec.receive(80000, ":bob!b@x JOIN #chan");
+		assertEquals(List.of(
+			"#chan@1100 R_NETSPLIT|hub.example.net leaf.example.net|alice!a@x|bob!b@x",
+			"#chan@60000 R_NETJOIN|alice!a@x|bob!b@x",
+			"#chan@70000 R_PART|alice!a@x|other",
+			"#chan@70000 R_PART|bob!b@x|other",
+			"#chan@80000 R_JOIN|alice!a@x|other",
+			"#chan@80000 R_JOIN|bob!b@x|other"), rec.messages);
+	}
+	
+	@Test public void testIdleBurstFlushedByTimer() {
+		Recorder rec = joinedWithUsers(1000, "alice", "bob");
+		rec.receive(1100, ":alice!a@x QUIT :hub.example.net leaf.example.net");
+		rec.receive(1200, ":bob!b@x QUIT :hub.example.net leaf.example.net");
+		rec.flushIdleBurst(5000);
+		assertEquals(0, rec.messages.size());  // Not idle long enough
+		rec.flushIdleBurst(7000);
+		assertEquals(List.of(
+			"#chan@1100 R_NETSPLIT|hub.example.net leaf.example.net|alice!a@x|bob!b@x"), rec.messages);
+	}
+	
+	@Test public void testCheckpointContinuesIdentically() throws IOException {
+		Recorder rec = joinedWithUsers(1000, "alice", "bob", "carol");
+		rec.receive(1100, ":alice!a@x QUIT :hub.example.net leaf.example.net");
+		rec.receive(1200, ":carol!c@x QUIT :hub.example.net leaf.example.net");  // Burst still pending
+		Recorder copy = new Recorder();
+		copy.restoreCheckpoint(rec.saveCheckpoint());
+		for (Recorder r : List.of(rec, copy)) {
+			r.messages.clear();
+			r.receive(1300, ":bob!b@x PRIVMSG #chan :hi");
+			r.receive(60000, ":alice!a@x JOIN #chan");
+			r.receive(60000, ":carol!c@x JOIN #chan");
+			r.receive(60000, ":bob!b@x QUIT :Quit: bye");  // Would post nothing if bob were not a member
+		}
+		assertEquals(List.of(
+			"#chan@1100 R_NETSPLIT|hub.example.net leaf.example.net|alice!a@x|carol!c@x",
+			"#chan@1300 R_PRIVMSG|bob!b@x|hi",
+			"#chan@60000 R_NETJOIN|alice!a@x|carol!c@x",
+			"#chan@60000 R_QUIT|bob!b@x|other|Quit: bye"), rec.messages);
+		assertEquals(rec.messages, copy.messages);
+	}
+	
+	@Test(expected=IOException.class) public void testCheckpointRejectsGarbage() throws IOException {
+		new Recorder().restoreCheckpoint(new byte[]{1, 2, 3});
+	}
+	
+	
+	private static Recorder joinedWithUsers(long time, String... nicknames) {
+		Recorder rec = new Recorder();
+		ConnectionEvent ev = new ConnectionEvent.Opening("irc.example.net", 6667, "UTF-8");
+		ev.timestampUnixMs = time;
+		rec.handle(ev);
+		ev = new ConnectionEvent.LineSent("NICK me".getBytes(StandardCharsets.UTF_8));
+		ev.timestampUnixMs = time;
+		rec.handle(ev);
+		rec.receive(time, ":me!m@x JOIN #chan");
+		for (String nick : nicknames)
+			rec.receive(time, ":" + nick + "!" + nick.charAt(0) + "@x JOIN #chan");
+		rec.messages.clear();
+		return rec;
+	}
+	
+	
+	
+	private static final class Recorder extends ConnectionState {
+		
+		public List<String> messages = new ArrayList<>();
+		
+		
+		public Recorder() {
+			super(0, 0, new File("unused.sqlite"));
+		}
+		
+		
+		public void receive(long time, String line) {
+			ConnectionEvent ev = new ConnectionEvent.LineReceived(line.getBytes(StandardCharsets.UTF_8));
+			ev.timestampUnixMs = time;
+			handle(ev);
+		}
+		
+		
+		@Override protected void postMessage(int profileId, String windowDisplayName, long timestampUnixMs, String data) {
+			messages.add(windowDisplayName + "@" + timestampUnixMs + " " + data.replace('\n', '|'));
+		}
+		
+	}
+	
+}
@@ -0,0 +1,168 @@
+package io.nayuki.mamirc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/*
+ * In connector mode, lets one processor process at a time attach over a Unix domain socket and
+ * follow the raw events of all connections. On attach, the processor first receives a snapshot of
+ * the live connections with the sequence number of each one's next event; every event from there
+ * on is then streamed as soon as the core has logged it. Earlier events are in the database, which
+ * the processor reads for itself. A processor that falls too far behind is detached, and can simply
+ * attach again. The core's lock makes the snapshot and the stream consistent with each other.
+ *
+ * Stream format (big endian), one record after another:
+ * - Snapshot: byte 'S', int count, then count times: long connectionId, int profileId, long nextSequence.
+ * - Event: byte 'E', long connectionId, int profileId, long sequence, long timestampUnixMs,
+ *   int dataLength, byte[] eventData (as in ConnectionEvent.toBytes()).
+ */
+final class ConnectorServer {
+	
+	private final Core core;
+	private final File socketFile;
+	private final ServerSocketChannel serverChannel;
+	private Attachment attachment = null;  // Guarded by the core's lock
+	
+	
+	public ConnectorServer(Core core, File socketFile) throws IOException {
+		this.core = core;
+		this.socketFile = socketFile;
+		Files.deleteIfExists(socketFile.toPath());  // Left over from a previous run
+		serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		serverChannel.bind(UnixDomainSocketAddress.of(socketFile.toPath()));
+		new Thread(this::acceptor).start();
+	}
+	
+	
+	private void acceptor() {
+		try {
+			while (true) {
+				SocketChannel ch = serverChannel.accept();
+				Attachment att = new Attachment(ch);
+				synchronized(core) {
+					ByteArrayOutputStream bout = new ByteArrayOutputStream();
+					DataOutputStream out = new DataOutputStream(bout);
+					out.writeByte('S');
+					out.writeInt(core.getConnections().size());
+					for (IrcServerConnection con : core.getConnections()) {
+						out.writeLong(con.connectionId);
+						out.writeInt(con.profileId);
+						out.writeLong(con.nextEventSequence);
+					}
+					att.offer(bout.toByteArray());
+					if (attachment != null)
+						attachment.close();
+					attachment = att;
+				}
+			}
+		} catch (IOException e) {}  // Closed by terminate()
+	}
+	
+	
+	// Must be called with the core's lock held, after the event has been logged.
+	public void publish(IrcServerConnection con, long sequence, ConnectionEvent ev) {
+		if (attachment == null)
+			return;
+		byte[] data = ev.toBytes();
+		ByteBuffer buf = ByteBuffer.allocate(Math.addExact(data.length, 33));
+		buf.put((byte)'E');
+		buf.putLong(con.connectionId);
+		buf.putInt(con.profileId);
+		buf.putLong(sequence);
+		buf.putLong(ev.timestampUnixMs);
+		buf.putInt(data.length);
+		buf.put(data);
+		if (!attachment.offer(buf.array())) {
+			attachment.close();
+			attachment = null;
+		}
+	}
+	
+	
+	public void terminate() {
+		try {
+			serverChannel.close();
+		} catch (IOException e) {}
+		synchronized(core) {
+			if (attachment != null)
+				attachment.close();
+			attachment = null;
+		}
+		socketFile.delete();
+	}
+	
+	
+	// Returns the configured socket path, or one next to the database file.
+	public static File getSocketFile(Database db, File dbFile) throws SQLException {
+		return new File(db.getConfigurationValue("Connector socket path")
+			.orElse(dbFile.getPath() + "-connector.sock"));
+	}
+	
+	
+	private static final long MAX_QUEUED_BYTES = 64L << 20;
+	
+	
+	
+	// One attached processor, with its own writer thread so that the core never blocks on it.
+	private static final class Attachment {
+		
+		private final SocketChannel channel;
+		private BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+		private AtomicLong queuedBytes = new AtomicLong();
+		private volatile boolean closed = false;
+		private final Thread writer;
+		
+		
+		public Attachment(SocketChannel ch) {
+			channel = ch;
+			writer = new Thread(this::writer);
+			writer.start();
+		}
+		
+		
+		// Returns false if the record was not queued, because the processor is gone or too far behind.
+		public boolean offer(byte[] record) {
+			if (closed || queuedBytes.addAndGet(record.length) > MAX_QUEUED_BYTES)
+				return false;
+			queue.add(record);
+			return true;
+		}
+		
+		
+		public void close() {
+			closed = true;
+			writer.interrupt();
+		}
+		
+		
+		private void writer() {
+			try (channel) {
+				while (!closed) {
+					byte[] record = queue.take();
+					ByteBuffer buf = ByteBuffer.wrap(record);
+					while (buf.hasRemaining())
+						channel.write(buf);
+					queuedBytes.addAndGet(-record.length);
+				}
+			} catch (IOException|InterruptedException e) {
+			} finally {
+				closed = true;
+			}
+		}
+		
+	}
+	
+}
@@ -3,13 +3,20 @@ package io.nayuki.mamirc;
 import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 
 final class Core {
@@ -18,17 +25,102 @@ final class Core {
 	
 	private Set<IrcServerConnection> connections = new HashSet<>();
 	
-	private WebServer server;
+	private WebServer server = null;  // Absent in connector mode
 	
-	private Archiver archiver;
+	private ConnectorServer connectorServer = null;  // Present only in connector mode
+	
+	private DatabaseShards shards;
+	
+	private Archivers archivers;
+	
+	private EventJournal journal = null;  // If present, raw events go here instead of to the archivers
+	
+	private Metrics metrics = new Metrics();
+	private final Metrics.Labeled<Metrics.Histogram> handleTime;
+	private final Metrics.Labeled<Metrics.Counter> linesReceived;
+	private final Metrics.Labeled<Metrics.Counter> linesSent;
+	private final Metrics.Labeled<Metrics.Histogram> lag;
+	private final Metrics.Counter lagReconnects;
+	private final Metrics.Labeled<Metrics.Histogram> tlsHandshakeTime;
+	
+	private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+	private ScheduledExecutorService retentionScheduler = Executors.newSingleThreadScheduledExecutor();  // Its runs take long
+	
+	// Both keyed by profile ID, and guarded by this object's lock
+	private Map<Integer,ScheduledFuture<?>> pendingReconnects = new HashMap<>();
+	private Map<Integer,Integer> consecutiveFailures = new HashMap<>();  // Connections that ended before registering
+	private final long lagThreshold;  // In nanoseconds
+	private final int outboundBurst;  // In lines
+	private final double outboundRate;  // In lines per second
 	
 	
 	public Core(File dbFile) throws IOException, SQLException {
+		this(dbFile, false);
+	}
+	
+	
+	// In connector mode, this core only keeps the IRC connections and logs their raw events. It
+	// processes no messages and serves no web pages; instead, a separate processor process attaches.
+	public Core(File dbFile, boolean isConnector) throws IOException, SQLException {
 		this.databaseFile = dbFile;
-		server = new WebServer(this);
+		shards = new DatabaseShards(dbFile);
+		metrics.newGauge("mamirc_core_event_queue_depth", "Connection events waiting for the core worker", eventQueue::size);
+		handleTime = metrics.newLabeledHistogram("mamirc_core_handle_seconds", "Time for the core worker to log and handle one connection event",
+			"event", MAX_EVENT_TYPE_LABELS, Metrics.LATENCY_BUCKETS_NS, Metrics.NANOSECONDS_TO_SECONDS);
+		linesReceived = metrics.newLabeledCounter("mamirc_irc_lines_received_total", "Lines received from the IRC server", "connection_id", MAX_CONNECTION_LABELS);
+		linesSent = metrics.newLabeledCounter("mamirc_irc_lines_sent_total", "Lines sent to the IRC server", "connection_id", MAX_CONNECTION_LABELS);
+		lag = metrics.newLabeledHistogram("mamirc_irc_lag_seconds", "Round-trip time of lag probe PINGs to the IRC server",
+			"connection_id", MAX_CONNECTION_LABELS, Metrics.LATENCY_BUCKETS_NS, Metrics.NANOSECONDS_TO_SECONDS);
+		lagReconnects = metrics.newCounter("mamirc_irc_lag_reconnects_total", "Connections replaced because a lag probe went unanswered too long");
+		tlsHandshakeTime = metrics.newLabeledHistogram("mamirc_irc_tls_handshake_seconds", "Time to complete a TLS handshake with the IRC server",
+			"resumed", 2, Metrics.LATENCY_BUCKETS_NS, Metrics.NANOSECONDS_TO_SECONDS);
 		Thread worker = new Thread(this::worker);
-		archiver = new Archiver(dbFile, worker);
+		Optional<String> journalDir;
+		File socketFile;
+		long archiverMemLimit;
+		long lagProbeInterval;
+		long retentionInterval;
+		try (Database db = new Database(dbFile)) {
+			journalDir = db.getConfigurationValue("Event journal directory");
+			socketFile = ConnectorServer.getSocketFile(db, dbFile);
+			archiverMemLimit = db.getConfigurationValue("Archiver queue memory limit")
+				.map(Long::parseLong).orElse(DEFAULT_ARCHIVER_MEMORY_LIMIT);
+			lagProbeInterval = db.getConfigurationValue("Lag probe interval ms")
+				.map(Long::parseLong).orElse(DEFAULT_LAG_PROBE_INTERVAL);
+			lagThreshold = db.getConfigurationValue("Lag reconnect threshold ms")
+				.map(Long::parseLong).orElse(DEFAULT_LAG_THRESHOLD) * 1_000_000;
+			outboundBurst = db.getConfigurationValue("Outbound burst lines")
+				.map(Integer::parseInt).orElse(DEFAULT_OUTBOUND_BURST);
+			outboundRate = db.getConfigurationValue("Outbound lines per second")
+				.map(Double::parseDouble).orElse(DEFAULT_OUTBOUND_RATE);
+			retentionInterval = db.getConfigurationValue("Retention interval ms")
+				.map(Long::parseLong).orElse(DEFAULT_RETENTION_INTERVAL);
+		}
+		if (journalDir.isPresent() && shards.isSharded())
+			throw new IllegalStateException("The event journal does not support profile shards yet");
+		archivers = new Archivers(shards, worker, archiverMemLimit, metrics);
+		try {
+			if (journalDir.isPresent())
+				journal = new EventJournal(new File(journalDir.get()), dbFile, worker);
+			if (isConnector)
+				connectorServer = new ConnectorServer(this, socketFile);
+			else
+				server = new WebServer(shards, archivers, metrics);
+		} catch (IOException|SQLException|RuntimeException e) {
+			archivers.postTermination();  // Otherwise its threads would keep the process alive
+			if (journal != null) {
+				try {
+					journal.close();
+				} catch (InterruptedException ee) {}
+			}
+			throw e;
+		}
 		worker.start();
+		scheduler.scheduleWithFixedDelay(this::probeLag, lagProbeInterval, lagProbeInterval, TimeUnit.MILLISECONDS);
+		scheduler.scheduleWithFixedDelay(this::flushIdleBursts, BURST_FLUSH_INTERVAL, BURST_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+		retentionScheduler.scheduleWithFixedDelay(new RetentionTask(shards, Optional.of(this),
+			isConnector ? Optional.empty() : Optional.of(archivers), metrics),
+			RETENTION_INITIAL_DELAY, retentionInterval, TimeUnit.MILLISECONDS);
 	}
 	
 	
@@ -39,39 +131,77 @@ final class Core {
 				synchronized(this) {
 					if (!connections.contains(ace.connection))
 						continue;
-					archiver.postEvent(ace.connection.connectionId, ace.event);
+					long startTime = System.nanoTime();
+					LineTraceEvent trace = ace.event.trace;
+					if (trace != null) {
+						trace.coreQueueTime = startTime - trace.lastMarkNanos;
+						trace.eventSequence = ace.connection.nextEventSequence;
+					}
+					ace.connection.nextEventSequence++;
+					
+					if (journal != null) {
+						journal.append(ace.connection.connectionId, ace.event);
+						if (trace != null)
+							trace.journaled(System.nanoTime() - startTime);
+					} else {
+						if (trace != null)
+							trace.lastMarkNanos = System.nanoTime();
+						ace.connection.getEventArchiver().postEvent(ace.connection.connectionId, ace.event);
+					}
+					if (connectorServer != null)
+						connectorServer.publish(ace.connection, ace.connection.nextEventSequence - 1, ace.event);
+					long handleStartTime = System.nanoTime();
 					try {
 						ace.connection.handle(ace.event);
 					} catch (IrcSyntaxException|IrcStateException e) {
 						e.printStackTrace();
 					}
+					handleTime.get(ace.connection.getLastEventType()).observeSince(startTime);
+					if (trace != null)
+						trace.handled(ace.connection.getLastEventType(), System.nanoTime() - handleStartTime);
+					if (ace.event instanceof ConnectionEvent.Closed) {
+						connections.remove(ace.connection);  // No further events can follow
+						if (!ace.connection.isCloseRequested())  // Lost, rather than closed by us
+							scheduleReconnect(ace.connection);
+					}
 				}
 			}
-		} catch (InterruptedException e) {
+		} catch (InterruptedException|IOException e) {
+			if (e instanceof IOException)
+				e.printStackTrace();
 			for (IrcServerConnection con : connections)
 				con.close();
 		} finally {
-			archiver.postTermination();
-			server.terminate();
+			scheduler.shutdownNow();
+			retentionScheduler.shutdownNow();
+			archivers.postTermination();
+			if (journal != null) {
+				try {
+					journal.close();
+				} catch (InterruptedException e) {}
+			}
+			if (server != null)
+				server.terminate();
+			if (connectorServer != null)
+				connectorServer.terminate();
 		}
 	}
 	
 	
 	public synchronized void reloadProfiles() throws IOException, SQLException {
 		Map<Integer,IrcServerConnection> toDisconnect = new HashMap<>();
-		for (IrcServerConnection con : connections)
-			toDisconnect.put(con.profileId, con);
+		for (IrcServerConnection con : connections) {
+			if (!con.isCloseRequested())  // Otherwise it is already being replaced or removed
+				toDisconnect.put(con.profileId, con);
+		}
 		
 		try (Database db = new Database(databaseFile)) {
 			for (int profId : db.getProfileIds()) {
-				if (db.getProfileDoConnect(profId) && toDisconnect.remove(profId) == null) {
-					List<IrcServer> servers = db.getProfileServers(profId);
-					if (!servers.isEmpty()) {
-						long conId = db.addConnection(profId);
-						IrcServerConnection con = new IrcServerConnection(conId, profId, this, archiver, servers.get(0), db.getProfileCharacterEncoding(profId));
-						connections.add(con);
-					}
-				}
+				boolean doConnect = db.getProfileDoConnect(profId);
+				if (!doConnect && pendingReconnects.containsKey(profId))
+					pendingReconnects.remove(profId).cancel(false);
+				if (doConnect && toDisconnect.remove(profId) == null && !pendingReconnects.containsKey(profId))
+					connect(db, profId);
 			}
 		}
 		
@@ -80,11 +210,145 @@ final class Core {
 	}
 	
 	
+	private void connect(Database db, int profId) throws IOException, SQLException {
+		List<IrcServer> servers = db.getProfileServers(profId);
+		if (!servers.isEmpty()) {
+			long conId = shards.addConnection(db, profId, connectorServer != null);
+			Archiver messageArchiver = isProcessingMessages() ? archivers.getMessageArchiver(profId) : null;
+			IrcServerConnection con = new IrcServerConnection(conId, profId, this, archivers.getEventArchiver(profId), messageArchiver,
+				servers, db.getProfileCharacterEncoding(profId), new OutboundScheduler(outboundBurst, outboundRate));
+			connections.add(con);
+		}
+	}
+	
+	
+	// Reconnects after a random delay between zero and a cap that doubles with each consecutive
+	// failure ("full jitter"), so that a flapping server is not hammered and many profiles
+	// losing their connections at once do not all reconnect in the same instant.
+	private void scheduleReconnect(IrcServerConnection con) {
+		int profId = con.profileId;
+		int failures = con.isRegistered() ? 0 : consecutiveFailures.getOrDefault(profId, 0) + 1;
+		consecutiveFailures.put(profId, failures);
+		long cap = Math.min(RECONNECT_BASE_DELAY << Math.min(failures, 30), RECONNECT_MAX_DELAY);
+		long delay = ThreadLocalRandom.current().nextLong(cap + 1);
+		pendingReconnects.put(profId, scheduler.schedule(() -> reconnect(profId), delay, TimeUnit.MILLISECONDS));
+	}
+	
+	
+	private synchronized void reconnect(int profId) {
+		if (pendingReconnects.remove(profId) == null)
+			return;  // Cancelled
+		try (Database db = new Database(databaseFile)) {
+			if (db.getProfileDoConnect(profId))
+				connect(db, profId);
+		} catch (IOException|SQLException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	
+	// Runs on the scheduler thread. A connection whose probe has gone unanswered for longer than the
+	// threshold is presumed half-dead, so it is closed and a new connection to the profile is opened
+	// right away, instead of waiting minutes for TCP or the server to give up.
+	private synchronized void probeLag() {
+		try {
+			for (IrcServerConnection con : new ArrayList<>(connections)) {
+				if (con.isCloseRequested())
+					continue;
+				if (con.getPendingLag() > lagThreshold) {
+					lagReconnects.increment();
+					con.close();
+					try (Database db = new Database(databaseFile)) {
+						if (db.getProfileDoConnect(con.profileId))
+							connect(db, con.profileId);
+					}
+				} else
+					con.sendLagProbe();
+			}
+		} catch (IOException|SQLException|RuntimeException e) {
+			e.printStackTrace();  // Keep the schedule running
+		}
+	}
+	
+	
+	// Runs on the scheduler thread. Ends netsplit bursts on connections that have gone quiet. Queued events
+	// are handled first instead, because they might still extend a burst, and they end it anyway if not.
+	private synchronized void flushIdleBursts() {
+		if (!eventQueue.isEmpty())
+			return;
+		long now = System.currentTimeMillis();
+		try {
+			for (IrcServerConnection con : connections)
+				con.flushIdleBurst(now);
+		} catch (RuntimeException e) {
+			e.printStackTrace();  // Keep the schedule running
+		}
+	}
+	
+	
 	public File getDatabaseFile() {
 		return databaseFile;
 	}
 	
 	
+	// Whether processed messages are produced by this core, rather than by a separate processor.
+	public boolean isProcessingMessages() {
+		return connectorServer == null;
+	}
+	
+	
+	// The caller must hold this object's lock.
+	Set<IrcServerConnection> getConnections() {
+		return connections;
+	}
+	
+	
+	public Archivers getArchivers() {
+		return archivers;
+	}
+	
+	
+	public Metrics getMetrics() {
+		return metrics;
+	}
+	
+	
+	// Per-connection counters, keyed by connection ID; each connection removes its own entry when it closes.
+	public Metrics.Labeled<Metrics.Counter> getLinesReceivedMetric() {
+		return linesReceived;
+	}
+	
+	
+	public Metrics.Labeled<Metrics.Counter> getLinesSentMetric() {
+		return linesSent;
+	}
+	
+	
+	public Metrics.Labeled<Metrics.Histogram> getLagMetric() {
+		return lag;
+	}
+	
+	
+	// Keyed by "true" for resumed sessions and "false" for full handshakes.
+	public Metrics.Labeled<Metrics.Histogram> getTlsHandshakeMetric() {
+		return tlsHandshakeTime;
+	}
+	
+	
+	static final long DEFAULT_ARCHIVER_MEMORY_LIMIT = 64L << 20;  // In bytes; also used by Processor
+	private static final long DEFAULT_LAG_PROBE_INTERVAL = 5_000;  // In milliseconds
+	private static final long DEFAULT_LAG_THRESHOLD = 20_000;  // In milliseconds
+	private static final int DEFAULT_OUTBOUND_BURST = 5;
+	private static final double DEFAULT_OUTBOUND_RATE = 2.0;  // Conservative for common ircd flood limits
+	static final long DEFAULT_RETENTION_INTERVAL = 3_600_000;  // In milliseconds; also used by Processor
+	static final long RETENTION_INITIAL_DELAY = 60_000;  // In milliseconds; also used by Processor
+	static final long BURST_FLUSH_INTERVAL = 1_000;  // In milliseconds; also used by Processor
+	private static final long RECONNECT_BASE_DELAY = 1_000;  // In milliseconds
+	private static final long RECONNECT_MAX_DELAY = 300_000;  // In milliseconds
+	private static final int MAX_EVENT_TYPE_LABELS = 100;  // IRC servers can send any command
+	private static final int MAX_CONNECTION_LABELS = 1000;
+	
+	
 	private BlockingQueue<AugmentedConnectionEvent> eventQueue = new FastQueue<>();
 	
 	
@@ -12,11 +12,14 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 
 final class Database implements AutoCloseable {
@@ -24,6 +27,14 @@ final class Database implements AutoCloseable {
 	private Connection connection;
 	private Statement statement;
 	
+	// Statements on the archiving hot path are prepared once per Database object and reused.
+	private Map<String,PreparedStatement> cachedStatements = new HashMap<>();
+	
+	// Message windows are never deleted, so the mapping (profile ID, canonical name) -> window ID is stable.
+	private Map<Integer,Map<String,Long>> windowIdCache = new HashMap<>();
+	
+	private EventDataCompressor compressor = null;  // Created on first use, because most instances never touch events
+	
 	
 	public Database(File file) throws IOException, SQLException {
 		boolean create;
@@ -42,13 +53,44 @@ final class Database implements AutoCloseable {
 		statement.executeUpdate("PRAGMA busy_timeout = 100000");  // In milliseconds
 		
 		if (create)
-			executeInitScript();
+			executeScript("resource/database-initialization.sql");
+		upgradeSchema();
+	}
+	
+	
+	// Brings the schema from any older version up to SCHEMA_VERSION, one step at a time.
+	// Step n is the script "resource/database-upgrade-n.sql", run in one transaction.
+	private void upgradeSchema() throws IOException, SQLException {
+		while (getSchemaVersion() < SCHEMA_VERSION) {
+			statement.executeUpdate("BEGIN IMMEDIATE TRANSACTION");
+			boolean ok = false;
+			try {
+				int version = getSchemaVersion();  // Another process might have upgraded it meanwhile
+				if (version < SCHEMA_VERSION) {
+					executeScript("resource/database-upgrade-" + (version + 1) + ".sql");
+					statement.executeUpdate("PRAGMA user_version = " + (version + 1));
+				}
+				ok = true;
+			} finally {
+				statement.executeUpdate(ok ? "COMMIT TRANSACTION" : "ROLLBACK TRANSACTION");
+			}
+		}
+	}
+	
+	
+	private int getSchemaVersion() throws SQLException {
+		try (ResultSet rs = statement.executeQuery("PRAGMA user_version")) {
+			return rs.getInt(1);
+		}
 	}
 	
 	
-	private void executeInitScript() throws IOException, SQLException {
+	private static final int SCHEMA_VERSION = 7;
+	
+	
+	private void executeScript(String resourceName) throws IOException, SQLException {
 		try (BufferedReader in = new BufferedReader(new InputStreamReader(
-				getClass().getClassLoader().getResourceAsStream("resource/database-initialization.sql"),
+				getClass().getClassLoader().getResourceAsStream(resourceName),
 				StandardCharsets.UTF_8))) {
 			
 			StringBuilder sb = new StringBuilder();
@@ -68,8 +110,20 @@ final class Database implements AutoCloseable {
 	}
 	
 	
+	private PreparedStatement prepareCached(String sql) throws SQLException {
+		PreparedStatement result = cachedStatements.get(sql);
+		if (result == null) {
+			result = connection.prepareStatement(sql);
+			cachedStatements.put(sql, result);
+		}
+		return result;
+	}
+	
+	
 	public void close() throws IOException {
 		try {
+			if (compressor != null)
+				compressor.close();
 			connection.close();
 		} catch (SQLException e) {
 			throw new IOException(e);
@@ -77,6 +131,13 @@ final class Database implements AutoCloseable {
 	}
 	
 	
+	private EventDataCompressor getCompressor() {
+		if (compressor == null)
+			compressor = new EventDataCompressor();
+		return compressor;
+	}
+	
+	
 	public Optional<String> getConfigurationValue(String key) throws SQLException {
 		try (PreparedStatement st = connection.prepareStatement("SELECT value FROM configuration WHERE key=?")) {
 			st.setString(1, Objects.requireNonNull(key));
@@ -109,6 +170,73 @@ final class Database implements AutoCloseable {
 	}
 	
 	
+	public boolean hasMessageWindows() throws SQLException {
+		try (ResultSet rs = statement.executeQuery("SELECT EXISTS (SELECT * FROM message_windows)")) {
+			return rs.getBoolean(1);
+		}
+	}
+	
+	
+	public Optional<Integer> getProfileIdByName(String profileName) throws SQLException {
+		try (PreparedStatement st = connection.prepareStatement("SELECT profile_id FROM irc_network_profiles WHERE profile_name=?")) {
+			st.setString(1, profileName);
+			try (ResultSet rs = st.executeQuery()) {
+				return rs.next() ? Optional.of(rs.getInt(1)) : Optional.empty();
+			}
+		}
+	}
+	
+	
+	public String getProfileName(int profileId) throws SQLException {
+		try (PreparedStatement st = connection.prepareStatement("SELECT profile_name FROM irc_network_profiles WHERE profile_id=?")) {
+			st.setInt(1, profileId);
+			try (ResultSet rs = st.executeQuery()) {
+				if (rs.next())
+					return rs.getString(1);
+			}
+		}
+		throw new IllegalStateException("Profile missing from database");
+	}
+	
+	
+	// For a new shard file (see DatabaseShards): mirrors the profile row, and makes the window IDs start at the given base.
+	public void initializeShard(int profileId, String profileName, long windowIdBase) throws SQLException {
+		statement.executeUpdate("BEGIN IMMEDIATE TRANSACTION");
+		boolean ok = false;
+		try {
+			try (PreparedStatement st = connection.prepareStatement("INSERT OR IGNORE INTO irc_network_profiles(profile_id, profile_name) VALUES (?,?)")) {
+				st.setInt(1, profileId);
+				st.setString(2, profileName);
+				st.executeUpdate();
+			}
+			setConfigurationValue("Window ID base", Long.toString(windowIdBase));
+			ok = true;
+		} finally {
+			statement.executeUpdate(ok ? "COMMIT TRANSACTION" : "ROLLBACK TRANSACTION");
+		}
+	}
+	
+	
+	// For a shard file: adds the row of a connection that was created in the main file,
+	// along with its zero processor progress if the connection is for a separate processor.
+	public void mirrorConnection(long connectionId, int profileId, boolean forProcessor) throws SQLException {
+		statement.executeUpdate("BEGIN IMMEDIATE TRANSACTION");
+		boolean ok = false;
+		try {
+			try (PreparedStatement st = connection.prepareStatement("INSERT OR IGNORE INTO connections(connection_id, profile_id) VALUES (?,?)")) {
+				st.setLong(1, connectionId);
+				st.setInt(2, profileId);
+				st.executeUpdate();
+			}
+			if (forProcessor)
+				initProcessorProgress(connectionId);
+			ok = true;
+		} finally {
+			statement.executeUpdate(ok ? "COMMIT TRANSACTION" : "ROLLBACK TRANSACTION");
+		}
+	}
+	
+	
 	public boolean getProfileDoConnect(int profileId) throws SQLException {
 		try (PreparedStatement st = connection.prepareStatement("SELECT do_connect FROM profile_configuration WHERE profile_id=?")) {
 			st.setInt(1, profileId);
@@ -201,7 +329,9 @@ final class Database implements AutoCloseable {
 	}
 	
 	
-	public long addConnection(int profileId) throws SQLException {
+	// If the connection is for a separate processor (i.e. opened by a connector), its processor progress
+	// starts at zero in the same transaction, so that no processor can miss it, even if none ever sees it live.
+	public long addConnection(int profileId, boolean forProcessor) throws SQLException {
 		statement.executeUpdate("BEGIN IMMEDIATE TRANSACTION");
 		boolean ok = false;
 		try {
@@ -215,6 +345,8 @@ final class Database implements AutoCloseable {
 				if (st.executeUpdate() != 1)
 					throw new SQLException();
 			}
+			if (forProcessor)
+				initProcessorProgress(result);
 			ok = true;
 			return result;
 		} finally {
@@ -233,51 +365,437 @@ final class Database implements AutoCloseable {
 	}
 	
 	
+	public void rollbackTransaction() throws SQLException {
+		statement.executeUpdate("ROLLBACK TRANSACTION");
+	}
+	
+	
 	public void addConnectionEvent(long connectionId, ConnectionEvent event) throws SQLException {
-		try (PreparedStatement st = connection.prepareStatement("INSERT INTO connection_events(connection_id, sequence, timestamp_unix_ms, data) "
-				+ "VALUES (?,(SELECT ifnull(max(sequence)+1,0) FROM connection_events WHERE connection_id=?),?,?)")) {
+		PreparedStatement st = prepareCached("INSERT INTO connection_events(connection_id, sequence, timestamp_unix_ms, data) "
+			+ "VALUES (?,(SELECT ifnull(max(sequence)+1,0) FROM connection_events WHERE connection_id=?),?,?)");
+		st.setLong(1, connectionId);
+		st.setLong(2, connectionId);
+		st.setLong(3, event.timestampUnixMs);
+		st.setBytes(4, getCompressor().compress(event.toBytes()));
+		st.executeUpdate();
+	}
+	
+	
+	// Idempotent: an event whose sequence number already exists in the table is ignored.
+	public void addConnectionEvent(long connectionId, long sequence, long timestampUnixMs, byte[] data) throws SQLException {
+		PreparedStatement st = prepareCached("INSERT OR IGNORE INTO connection_events(connection_id, sequence, timestamp_unix_ms, data) VALUES (?,?,?,?)");
+		st.setLong(1, connectionId);
+		st.setLong(2, sequence);
+		st.setLong(3, timestampUnixMs);
+		st.setBytes(4, getCompressor().compress(data));
+		st.executeUpdate();
+	}
+	
+	
+	// Returns a map of connection ID to profile ID, in ascending order of connection ID.
+	public Map<Long,Integer> getConnectionProfiles() throws SQLException {
+		Map<Long,Integer> result = new LinkedHashMap<>();
+		try (ResultSet rs = statement.executeQuery("SELECT connection_id, profile_id FROM connections ORDER BY connection_id ASC")) {
+			while (rs.next())
+				result.put(rs.getLong(1), rs.getInt(2));
+		}
+		return result;
+	}
+	
+	
+	// Streams all the events of the given connection in sequence order, without holding them all in memory.
+	public void forEachConnectionEvent(long connectionId, Consumer<ConnectionEvent> consumer) throws SQLException {
+		try (PreparedStatement st = connection.prepareStatement("SELECT timestamp_unix_ms, data FROM connection_events WHERE connection_id=? ORDER BY sequence ASC")) {
+			st.setLong(1, connectionId);
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next())
+					consumer.accept(ConnectionEvent.fromBytes(rs.getLong(1), getCompressor().decompress(rs.getBytes(2))));
+			}
+		}
+	}
+	
+	
+	// Like forEachConnectionEvent(), but only the events with sequence numbers in [sequenceStart, sequenceEnd).
+	public void forEachConnectionEvent(long connectionId, long sequenceStart, long sequenceEnd, Consumer<ConnectionEvent> consumer) throws SQLException {
+		try (PreparedStatement st = connection.prepareStatement("SELECT timestamp_unix_ms, data FROM connection_events WHERE connection_id=? AND sequence>=? AND sequence<? ORDER BY sequence ASC")) {
+			st.setLong(1, connectionId);
+			st.setLong(2, sequenceStart);
+			st.setLong(3, sequenceEnd);
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next())
+					consumer.accept(ConnectionEvent.fromBytes(rs.getLong(1), getCompressor().decompress(rs.getBytes(2))));
+			}
+		}
+	}
+	
+	
+	// Returns the sequence number that the next event of the given connection would get.
+	public long getNextConnectionEventSequence(long connectionId) throws SQLException {
+		PreparedStatement st = prepareCached("SELECT ifnull(max(sequence)+1,0) FROM connection_events WHERE connection_id=?");
+		st.setLong(1, connectionId);
+		try (ResultSet rs = st.executeQuery()) {
+			return rs.getLong(1);
+		}
+	}
+	
+	
+	// Returns a map of connection ID to the processor's next sequence number, for connections
+	// that were opened by a connector process. Ascending order of connection ID.
+	public Map<Long,Long> getProcessorProgress() throws SQLException {
+		Map<Long,Long> result = new LinkedHashMap<>();
+		try (ResultSet rs = statement.executeQuery("SELECT connection_id, next_sequence FROM processor_progress ORDER BY connection_id ASC")) {
+			while (rs.next())
+				result.put(rs.getLong(1), rs.getLong(2));
+		}
+		return result;
+	}
+	
+	
+	private void initProcessorProgress(long connectionId) throws SQLException {
+		try (PreparedStatement st = connection.prepareStatement("INSERT OR IGNORE INTO processor_progress(connection_id, next_sequence) VALUES (?,0)")) {
 			st.setLong(1, connectionId);
-			st.setLong(2, connectionId);
-			st.setLong(3, event.timestampUnixMs);
-			st.setBytes(4, event.toBytes());
 			st.executeUpdate();
 		}
 	}
 	
 	
+	public void setProcessorProgress(long connectionId, long nextSequence) throws SQLException {
+		PreparedStatement st = prepareCached("INSERT OR REPLACE INTO processor_progress(connection_id, next_sequence) VALUES (?,?)");
+		st.setLong(1, connectionId);
+		st.setLong(2, nextSequence);
+		st.executeUpdate();
+	}
+	
+	
+	// Returns the processor's latest checkpoint of the given connection, as the next sequence
+	// number and the state after the events before it, or empty if there is none.
+	public Optional<Map.Entry<Long,byte[]>> getProcessorCheckpoint(long connectionId) throws SQLException {
+		PreparedStatement st = prepareCached("SELECT next_sequence, state FROM processor_checkpoints WHERE connection_id=?");
+		st.setLong(1, connectionId);
+		try (ResultSet rs = st.executeQuery()) {
+			if (!rs.next())
+				return Optional.empty();
+			return Optional.of(Map.entry(rs.getLong(1), rs.getBytes(2)));
+		}
+	}
+	
+	
+	public void setProcessorCheckpoint(long connectionId, long nextSequence, byte[] state) throws SQLException {
+		PreparedStatement st = prepareCached("INSERT OR REPLACE INTO processor_checkpoints(connection_id, next_sequence, state) VALUES (?,?,?)");
+		st.setLong(1, connectionId);
+		st.setLong(2, nextSequence);
+		st.setBytes(3, state);
+		st.executeUpdate();
+	}
+	
+	
+	public void deleteProcessorCheckpoint(long connectionId) throws SQLException {
+		PreparedStatement st = prepareCached("DELETE FROM processor_checkpoints WHERE connection_id=?");
+		st.setLong(1, connectionId);
+		st.executeUpdate();
+	}
+	
+	
 	public void addProcessedMessage(int profileId, String displayName, long timestampUnixMs, String data) throws SQLException {
+		addProcessedMessage(profileId, displayName, timestampUnixMs, data, false);
+	}
+	
+	
+	// For bulk loading, the full-text index entry and the change log entry are skipped, so the
+	// caller must index the new rows afterward (see indexMessagesAfter()). Bulk-loaded messages can
+	// be older than the window's newest message, so they never replace the window's summary.
+	public void addProcessedMessage(int profileId, String displayName, long timestampUnixMs, String data, boolean bulk) throws SQLException {
+		long windowId = getOrAddMessageWindow(profileId, displayName);
+		PreparedStatement st = prepareCached("INSERT INTO processed_messages(window_id, sequence, timestamp_unix_ms, data, marked_read) "
+			+ "VALUES (?,(SELECT next_sequence FROM message_windows WHERE window_id=?),?,?,0)");
+		st.setLong(1, windowId);
+		st.setLong(2, windowId);
+		st.setLong(3, timestampUnixMs);
+		st.setString(4, data);
+		if (st.executeUpdate() != 1)
+			throw new SQLException();
+		
+		// Same as substr() in SQL (see upgrade 3), which never splits a surrogate pair
+		String preview = data.codePointCount(0, data.length()) <= MESSAGE_PREVIEW_LENGTH ? data
+			: data.substring(0, data.offsetByCodePoints(0, MESSAGE_PREVIEW_LENGTH));
+		if (bulk) {
+			st = prepareCached("UPDATE message_windows SET next_sequence=next_sequence+1, "
+				+ "last_message_preview=(CASE WHEN ifnull(last_timestamp_unix_ms<=?,1) THEN ? ELSE last_message_preview END), "
+				+ "last_timestamp_unix_ms=(CASE WHEN ifnull(last_timestamp_unix_ms<=?,1) THEN ? ELSE last_timestamp_unix_ms END) WHERE window_id=?");
+			st.setLong(1, timestampUnixMs);
+			st.setString(2, preview);
+			st.setLong(3, timestampUnixMs);
+			st.setLong(4, timestampUnixMs);
+			st.setLong(5, windowId);
+			if (st.executeUpdate() != 1)
+				throw new SQLException();
+			return;
+		}
+		st = prepareCached("UPDATE message_windows SET next_sequence=next_sequence+1, last_timestamp_unix_ms=?, last_message_preview=? WHERE window_id=?");
+		st.setLong(1, timestampUnixMs);
+		st.setString(2, preview);
+		st.setLong(3, windowId);
+		if (st.executeUpdate() != 1)
+			throw new SQLException();
+		
+		st = prepareCached("INSERT INTO processed_messages_fts(rowid, data) VALUES (last_insert_rowid(),?)");
+		st.setString(1, data);
+		st.executeUpdate();
+		
+		st = prepareCached("INSERT INTO changes(kind, window_id, sequence) VALUES ('message',?,(SELECT next_sequence-1 FROM message_windows WHERE window_id=?))");
+		st.setLong(1, windowId);
+		st.setLong(2, windowId);
+		st.executeUpdate();
+	}
+	
+	
+	private static final int MESSAGE_PREVIEW_LENGTH = 200;  // In code points
+	
+	
+	public long getOrAddMessageWindow(int profileId, String displayName) throws SQLException {
 		String canonicalName = ConnectionState.toCanonicalCase(displayName);
-		long windowId;
+		Map<String,Long> profileWindows = windowIdCache.computeIfAbsent(profileId, k -> new HashMap<>());
+		Long cached = profileWindows.get(canonicalName);
+		if (cached != null)
+			return cached;
+		
 		while (true) {
-			try (PreparedStatement st = connection.prepareStatement("SELECT window_id FROM message_windows WHERE profile_id=? and canonical_name=?")) {
-				st.setInt(1, profileId);
-				st.setString(2, canonicalName);
+			PreparedStatement st = prepareCached("SELECT window_id FROM message_windows WHERE profile_id=? and canonical_name=?");
+			st.setInt(1, profileId);
+			st.setString(2, canonicalName);
+			try (ResultSet rs = st.executeQuery()) {
+				if (rs.next()) {
+					long result = rs.getLong(1);
+					profileWindows.put(canonicalName, result);
+					return result;
+				}
+			}
+			
+			st = prepareCached("INSERT INTO message_windows(window_id, profile_id, display_name, canonical_name) "
+				+ "VALUES ((SELECT ifnull(max(window_id)+1,ifnull((SELECT CAST(value AS INTEGER) FROM configuration WHERE key='Window ID base'),0)) FROM message_windows),?,?,?)");
+			st.setInt(1, profileId);
+			st.setString(2, displayName);
+			st.setString(3, canonicalName);
+			if (st.executeUpdate() != 1)
+				throw new SQLException();
+			statement.executeUpdate("INSERT INTO changes(kind, window_id) VALUES ('window',(SELECT max(window_id) FROM message_windows))");
+		}
+	}
+	
+	
+	// New processed messages get IDs above every existing one, so this marks where a bulk load begins.
+	public long getMaxMessageId() throws SQLException {
+		try (ResultSet rs = statement.executeQuery("SELECT ifnull(max(message_id),0) FROM processed_messages")) {
+			return rs.getLong(1);
+		}
+	}
+	
+	
+	// Indexes the processed messages above the given message ID, after bulk loading them.
+	public void indexMessagesAfter(long messageId) throws SQLException {
+		try (PreparedStatement st = connection.prepareStatement("INSERT INTO processed_messages_fts(rowid, data) "
+				+ "SELECT message_id, data FROM processed_messages WHERE message_id>?")) {
+			st.setLong(1, messageId);
+			st.executeUpdate();
+		}
+	}
+	
+	
+	// Returns the sequence number that the window's next message will get. The window must exist.
+	public long getNextMessageSequence(long windowId) throws SQLException {
+		PreparedStatement st = prepareCached("SELECT next_sequence FROM message_windows WHERE window_id=?");
+		st.setLong(1, windowId);
+		try (ResultSet rs = st.executeQuery()) {
+			if (!rs.next())
+				throw new IllegalArgumentException("Window not found");
+			return rs.getLong(1);
+		}
+	}
+	
+	
+	public boolean hasProcessedMessages(long windowId) throws SQLException {
+		PreparedStatement st = prepareCached("SELECT EXISTS (SELECT * FROM processed_messages WHERE window_id=?)");
+		st.setLong(1, windowId);
+		try (ResultSet rs = st.executeQuery()) {
+			return rs.getBoolean(1);
+		}
+	}
+	
+	
+	// Deletes every processed message but keeps the message windows (and thus their IDs).
+	// Only for rebuilding all messages from the raw connection events.
+	public void deleteAllProcessedMessages() throws SQLException {
+		statement.executeUpdate("INSERT INTO processed_messages_fts(processed_messages_fts) VALUES ('delete-all')");
+		statement.executeUpdate("DELETE FROM processed_messages");
+		statement.executeUpdate("UPDATE message_windows SET next_sequence=0, read_sequence=0, last_timestamp_unix_ms=NULL, last_message_preview=NULL");
+		statement.executeUpdate("DELETE FROM changes WHERE kind<>'window'");
+		// The rebuild replays every stored event, so a separate processor must not emit them again
+		statement.executeUpdate("UPDATE processor_progress SET next_sequence="
+			+ "(SELECT ifnull(max(sequence)+1,0) FROM connection_events WHERE connection_events.connection_id=processor_progress.connection_id)");
+	}
+	
+	
+	// Returns the retention policy of every profile that has one, keyed by profile ID.
+	public Map<Integer,RetentionTask.Policy> getRetentionPolicies() throws SQLException {
+		Map<Integer,RetentionTask.Policy> result = new LinkedHashMap<>();
+		try (ResultSet rs = statement.executeQuery("SELECT profile_id, event_days, message_days, numeric_reply_days FROM profile_retention ORDER BY profile_id ASC")) {
+			while (rs.next()) {
+				result.put(rs.getInt(1), new RetentionTask.Policy(
+					Optional.ofNullable((Number)rs.getObject(2)).map(Number::intValue),
+					Optional.ofNullable((Number)rs.getObject(3)).map(Number::intValue),
+					Optional.ofNullable((Number)rs.getObject(4)).map(Number::intValue)));
+			}
+		}
+		return result;
+	}
+	
+	
+	// Returns the connections of the given profile that have ended (their newest event is Closed) before the
+	// given time, and which a separate processor (if any) has fully processed. Connections without events are excluded.
+	// With a separate processor, a connection without a progress row counts as unprocessed; otherwise
+	// only the rows that a processor left behind in an earlier split mode are checked.
+	public List<Long> getExpiredConnections(int profileId, long timestampUnixMs, boolean separateProcessor) throws SQLException {
+		List<Long> result = new ArrayList<>();
+		String maxSequence = "(SELECT max(sequence) FROM connection_events WHERE connection_events.connection_id=connections.connection_id)";
+		String processed = separateProcessor
+			? "EXISTS (SELECT * FROM processor_progress WHERE processor_progress.connection_id=connections.connection_id and next_sequence>" + maxSequence + ")"
+			: "NOT EXISTS (SELECT * FROM processor_progress WHERE processor_progress.connection_id=connections.connection_id and next_sequence<=" + maxSequence + ")";
+		try (PreparedStatement st = connection.prepareStatement("SELECT connection_id, "
+				+ "(SELECT data FROM connection_events WHERE connection_events.connection_id=connections.connection_id ORDER BY sequence DESC LIMIT 1) "
+				+ "FROM connections WHERE profile_id=? and "
+				+ "(SELECT timestamp_unix_ms FROM connection_events WHERE connection_events.connection_id=connections.connection_id ORDER BY sequence DESC LIMIT 1)<? and "
+				+ processed)) {
+			st.setInt(1, profileId);
+			st.setLong(2, timestampUnixMs);
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					// Otherwise it may just be quiet, and its numbering would restart if its events were deleted
+					boolean closed;
+					try {
+						closed = ConnectionEvent.fromBytes(0, getCompressor().decompress(rs.getBytes(2))) instanceof ConnectionEvent.Closed;
+					} catch (IllegalArgumentException e) {  // Corrupt, so keep it for inspection
+						closed = false;
+					}
+					if (closed)
+						result.add(rs.getLong(1));
+				}
+			}
+		}
+		return result;
+	}
+	
+	
+	// Deletes up to the given number of the oldest events of the given connection. Returns the number deleted.
+	public int deleteConnectionEvents(long connectionId, int limit) throws SQLException {
+		PreparedStatement st = prepareCached("DELETE FROM connection_events WHERE rowid IN "
+			+ "(SELECT rowid FROM connection_events WHERE connection_id=? ORDER BY sequence ASC LIMIT ?)");
+		st.setLong(1, connectionId);
+		st.setInt(2, limit);
+		return st.executeUpdate();
+	}
+	
+	
+	// Deletes up to the given number of the given profile's messages that are older than the given time,
+	// optionally only numeric replies (R_RPL), along with their full-text index entries and their changes. Returns the number deleted.
+	// The windows keep their sequence counters and read pointers, so the remaining messages keep their sequence numbers.
+	public int deleteExpiredMessages(int profileId, long timestampUnixMs, boolean numericRepliesOnly, int limit) throws SQLException {
+		PreparedStatement st = prepareCached("SELECT processed_messages.message_id, processed_messages.data "
+			+ "FROM message_windows JOIN processed_messages ON processed_messages.window_id=message_windows.window_id "
+			+ "WHERE profile_id=? and timestamp_unix_ms<? and (?=0 or substr(processed_messages.data,1,6)=?) LIMIT ?");
+		st.setInt(1, profileId);
+		st.setLong(2, timestampUnixMs);
+		st.setInt(3, numericRepliesOnly ? 1 : 0);
+		st.setString(4, "R_RPL\n");
+		st.setInt(5, limit);
+		Map<Long,String> rows = new LinkedHashMap<>();
+		try (ResultSet rs = st.executeQuery()) {
+			while (rs.next())
+				rows.put(rs.getLong(1), rs.getString(2));
+		}
+		
+		// An external-content index needs the old values to remove its entries
+		PreparedStatement ftsSt = prepareCached("INSERT INTO processed_messages_fts(processed_messages_fts, rowid, data) VALUES ('delete',?,?)");
+		// Otherwise a client catching up would be sent changes for messages that no longer exist
+		PreparedStatement changeSt = prepareCached("DELETE FROM changes WHERE kind='message' and (window_id, sequence)="
+			+ "(SELECT window_id, sequence FROM processed_messages WHERE message_id=?)");
+		PreparedStatement delSt = prepareCached("DELETE FROM processed_messages WHERE message_id=?");
+		for (Map.Entry<Long,String> entry : rows.entrySet()) {
+			ftsSt.setLong(1, entry.getKey());
+			ftsSt.setString(2, entry.getValue());
+			ftsSt.executeUpdate();
+			changeSt.setLong(1, entry.getKey());
+			changeSt.executeUpdate();
+			delSt.setLong(1, entry.getKey());
+			delSt.executeUpdate();
+		}
+		return rows.size();
+	}
+	
+	
+	// Gives up to the given number (which must be positive) of free pages back to the file system,
+	// if the database uses incremental auto-vacuum. Otherwise nothing happens.
+	public void incrementalVacuum(int pages) throws SQLException {
+		if (pages <= 0)
+			throw new IllegalArgumentException("Non-positive page count");  // Would mean all pages
+		// Each step of the pragma frees one page, so it must be stepped to completion
+		try (ResultSet rs = statement.executeQuery("PRAGMA incremental_vacuum(" + pages + ")")) {
+			while (rs.next());
+		}
+	}
+	
+	
+	public long getFreePageCount() throws SQLException {
+		try (ResultSet rs = statement.executeQuery("PRAGMA freelist_count")) {
+			return rs.getLong(1);
+		}
+	}
+	
+	
+	public boolean isIncrementalVacuumEnabled() throws SQLException {
+		try (ResultSet rs = statement.executeQuery("PRAGMA auto_vacuum")) {
+			return rs.getInt(1) == 2;
+		}
+	}
+	
+	
+	// Marks all messages before the given sequence number as read. The read pointer never moves
+	// backward or past the newest message. Returns the resulting read pointer, or empty if no such window.
+	public Optional<Long> markMessagesRead(long windowId, long sequenceEnd) throws SQLException {
+		statement.executeUpdate("BEGIN IMMEDIATE TRANSACTION");
+		boolean ok = false;
+		try {
+			long readSeq;
+			try (PreparedStatement st = connection.prepareStatement("SELECT read_sequence, next_sequence FROM message_windows WHERE window_id=?")) {
+				st.setLong(1, windowId);
 				try (ResultSet rs = st.executeQuery()) {
-					if (rs.next()) {
-						windowId = rs.getLong(1);
-						break;
+					if (!rs.next()) {
+						ok = true;
+						return Optional.empty();
+					}
+					readSeq = rs.getLong(1);
+					long newReadSeq = Math.max(readSeq, Math.min(sequenceEnd, rs.getLong(2)));
+					if (newReadSeq == readSeq) {
+						ok = true;
+						return Optional.of(readSeq);
 					}
+					readSeq = newReadSeq;
 				}
 			}
-			
-			try (PreparedStatement st = connection.prepareStatement("INSERT INTO message_windows(window_id, profile_id, display_name, canonical_name) "
-					+ "VALUES ((SELECT ifnull(max(window_id)+1,0) FROM message_windows),?,?,?)")) {
-				st.setInt(1, profileId);
-				st.setString(2, displayName);
-				st.setString(3, canonicalName);
+			try (PreparedStatement st = connection.prepareStatement("UPDATE message_windows SET read_sequence=? WHERE window_id=?")) {
+				st.setLong(1, readSeq);
+				st.setLong(2, windowId);
 				if (st.executeUpdate() != 1)
 					throw new SQLException();
 			}
-		}
-		
-		try (PreparedStatement st = connection.prepareStatement("INSERT INTO processed_messages(window_id, sequence, timestamp_unix_ms, data, marked_read) "
-				+ "VALUES (?,(SELECT ifnull(max(sequence)+1,0) FROM processed_messages WHERE window_id=?),?,?,0)")) {
-			st.setLong(1, windowId);
-			st.setLong(2, windowId);
-			st.setLong(3, timestampUnixMs);
-			st.setString(4, data);
-			if (st.executeUpdate() != 1)
-				throw new SQLException();
+			try (PreparedStatement st = connection.prepareStatement("INSERT INTO changes(kind, window_id, sequence) VALUES ('read',?,?)")) {
+				st.setLong(1, windowId);
+				st.setLong(2, readSeq);
+				st.executeUpdate();
+			}
+			ok = true;
+			return Optional.of(readSeq);
+		} finally {
+			statement.executeUpdate(ok ? "COMMIT TRANSACTION" : "ROLLBACK TRANSACTION");
 		}
 	}
 	
@@ -299,36 +817,264 @@ final class Database implements AutoCloseable {
 		}
 		{
 			List<Map<String,Object>> windows = new ArrayList<>();
-			try (ResultSet rs = statement.executeQuery("SELECT window_id, profile_id, display_name FROM message_windows")) {
+			// Most recently active first, then windows without messages
+			try (ResultSet rs = statement.executeQuery("SELECT window_id, profile_id, display_name, next_sequence, read_sequence, last_timestamp_unix_ms, last_message_preview "
+					+ "FROM message_windows ORDER BY last_timestamp_unix_ms IS NULL ASC, last_timestamp_unix_ms DESC, window_id ASC")) {
 				while (rs.next()) {
 					Map<String,Object> win = new HashMap<>();
 					win.put("id", rs.getLong(1));
 					win.put("profileId", rs.getInt(2));
 					win.put("name", rs.getString(3));
+					win.put("nextSequence", rs.getLong(4));
+					win.put("readSequence", rs.getLong(5));
+					win.put("unreadCount", rs.getLong(4) - rs.getLong(5));
+					long lastTimestamp = rs.getLong(6);
+					if (!rs.wasNull()) {
+						win.put("lastSequence", rs.getLong(4) - 1);
+						win.put("lastTimestampUnixMs", lastTimestamp);
+						win.put("lastMessagePreview", rs.getString(7));
+					}
 					windows.add(win);
 				}
 			}
 			result.put("messageWindows", windows);
 		}
+		try (ResultSet rs = statement.executeQuery("SELECT ifnull(max(change_sequence),0) FROM changes")) {
+			result.put("changeSequence", rs.getLong(1));  // For subsequent delta sync
+		}
 		statement.executeUpdate("ROLLBACK TRANSACTION");
 		return result;
 	}
 	
 	
 	public List<Map<String,Object>> getMessages(long windowId, long sequenceStart, long sequenceEnd) throws SQLException {
-		List<Map<String,Object>> result = new ArrayList<>();
 		try (PreparedStatement st = connection.prepareStatement("SELECT sequence, timestamp_unix_ms, data, marked_read "
-				+ "FROM processed_messages 	WHERE window_id=? and ?<=sequence and sequence<?")) {
+				+ "FROM processed_messages_with_read_state WHERE window_id=? and ?<=sequence and sequence<?")) {
+			st.setLong(1, windowId);
+			st.setLong(2, sequenceStart);
+			st.setLong(3, sequenceEnd);
+			return readMessages(st);
+		}
+	}
+	
+	
+	// Streams the same rows as getMessages() into the given writer, without building intermediate objects.
+	// The result is an array of [sequence, timestampUnixMs, data, markedRead] arrays.
+	public void writeMessages(long windowId, long sequenceStart, long sequenceEnd, MessagePackWriter out) throws SQLException {
+		try (PreparedStatement st = connection.prepareStatement("SELECT sequence, timestamp_unix_ms, data, marked_read "
+				+ "FROM processed_messages_with_read_state WHERE window_id=? and ?<=sequence and sequence<?")) {
 			st.setLong(1, windowId);
 			st.setLong(2, sequenceStart);
 			st.setLong(3, sequenceEnd);
+			int token = out.beginArray();
+			int count = 0;
+			try (ResultSet rs = st.executeQuery()) {
+				for (; rs.next(); count++) {
+					out.writeArrayHeader(4);
+					out.writeInteger(rs.getLong(1));
+					out.writeInteger(rs.getLong(2));
+					out.writeString(rs.getString(3));
+					out.writeBoolean(rs.getBoolean(4));
+				}
+			}
+			out.endArray(token, count);
+		}
+	}
+	
+	
+	// Returns up to the given number of the newest messages whose sequence is less than the given cursor,
+	// in ascending order. This is a descending scan of the primary key, so it never reads skipped rows.
+	public List<Map<String,Object>> getMessagesBefore(long windowId, long sequenceCursor, int limit) throws SQLException {
+		try (PreparedStatement st = connection.prepareStatement("SELECT sequence, timestamp_unix_ms, data, marked_read "
+				+ "FROM processed_messages_with_read_state WHERE window_id=? and sequence<? ORDER BY sequence DESC LIMIT ?")) {
+			st.setLong(1, windowId);
+			st.setLong(2, sequenceCursor);
+			st.setInt(3, limit);
+			List<Map<String,Object>> result = readMessages(st);
+			Collections.reverse(result);
+			return result;
+		}
+	}
+	
+	
+	// Returns up to the given number of the oldest messages whose sequence is greater than the given cursor, in ascending order.
+	public List<Map<String,Object>> getMessagesAfter(long windowId, long sequenceCursor, int limit) throws SQLException {
+		try (PreparedStatement st = connection.prepareStatement("SELECT sequence, timestamp_unix_ms, data, marked_read "
+				+ "FROM processed_messages_with_read_state WHERE window_id=? and sequence>? ORDER BY sequence ASC LIMIT ?")) {
+			st.setLong(1, windowId);
+			st.setLong(2, sequenceCursor);
+			st.setInt(3, limit);
+			return readMessages(st);
+		}
+	}
+	
+	
+	// Returns the sequence of the earliest message at or after the given time, or empty if none.
+	public Optional<Long> findMessageSequenceAtTime(long windowId, long timestampUnixMs) throws SQLException {
+		try (PreparedStatement st = connection.prepareStatement("SELECT sequence FROM processed_messages "
+				+ "WHERE window_id=? and timestamp_unix_ms>=? ORDER BY timestamp_unix_ms ASC, sequence ASC LIMIT 1")) {
+			st.setLong(1, windowId);
+			st.setLong(2, timestampUnixMs);
+			try (ResultSet rs = st.executeQuery()) {
+				if (rs.next())
+					return Optional.of(rs.getLong(1));
+				else
+					return Optional.empty();
+			}
+		}
+	}
+	
+	
+	// Returns changes in ascending order of change sequence. For a message change, the message
+	// fields are absent if the message has since been deleted.
+	public List<Map<String,Object>> getChangesAfter(long changeSequence, int limit) throws SQLException {
+		List<Map<String,Object>> result = new ArrayList<>();
+		try (PreparedStatement st = connection.prepareStatement("SELECT change_sequence, kind, changes.window_id, changes.sequence, "
+				+ "timestamp_unix_ms, data, profile_id, display_name "
+				+ "FROM changes JOIN message_windows ON message_windows.window_id=changes.window_id "
+				+ "LEFT JOIN processed_messages ON kind='message' and processed_messages.window_id=changes.window_id and processed_messages.sequence=changes.sequence "
+				+ "WHERE change_sequence>? ORDER BY change_sequence ASC LIMIT ?")) {
+			st.setLong(1, changeSequence);
+			st.setInt(2, limit);
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					Map<String,Object> change = new HashMap<>();
+					change.put("changeSequence", rs.getLong(1));
+					String kind = rs.getString(2);
+					change.put("kind", kind);
+					change.put("windowId", rs.getLong(3));
+					switch (kind) {
+						case "message":
+							change.put("sequence", rs.getLong(4));
+							long timestamp = rs.getLong(5);
+							if (!rs.wasNull()) {
+								change.put("timestampUnixMs", timestamp);
+								change.put("data", rs.getString(6));
+							}
+							break;
+						case "window":
+							change.put("profileId", rs.getInt(7));
+							change.put("name", rs.getString(8));
+							break;
+						case "read":
+							change.put("readSequence", rs.getLong(4));
+							break;
+						default:
+							throw new AssertionError();
+					}
+					result.add(change);
+				}
+			}
+		}
+		return result;
+	}
+	
+	
+	// Streams the processed messages of the given profile or window (or all of them if both are empty),
+	// ordered by window ID and then sequence, which is the table's own order. Each message is a map with
+	// the keys profile (name), window (display name), sequence, timestampUnixMs and data.
+	public void forEachMessage(Optional<Integer> profileId, Optional<Long> windowId, Consumer<Map<String,Object>> consumer) throws SQLException {
+		try (PreparedStatement st = connection.prepareStatement("SELECT profile_name, display_name, sequence, timestamp_unix_ms, data "
+				+ "FROM processed_messages JOIN message_windows ON processed_messages.window_id=message_windows.window_id "
+				+ "JOIN irc_network_profiles ON message_windows.profile_id=irc_network_profiles.profile_id "
+				+ "WHERE (? is null or message_windows.profile_id=?) and (? is null or processed_messages.window_id=?) "
+				+ "ORDER BY processed_messages.window_id ASC, sequence ASC")) {
+			st.setObject(1, profileId.orElse(null));
+			st.setObject(2, profileId.orElse(null));
+			st.setObject(3, windowId.orElse(null));
+			st.setObject(4, windowId.orElse(null));
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					Map<String,Object> msg = new LinkedHashMap<>();
+					msg.put("profile", rs.getString(1));
+					msg.put("window", rs.getString(2));
+					msg.put("sequence", rs.getLong(3));
+					msg.put("timestampUnixMs", rs.getLong(4));
+					msg.put("data", rs.getString(5));
+					consumer.accept(msg);
+				}
+			}
+		}
+	}
+	
+	
+	private static List<Map<String,Object>> readMessages(PreparedStatement st) throws SQLException {
+		List<Map<String,Object>> result = new ArrayList<>();
+		try (ResultSet rs = st.executeQuery()) {
+			while (rs.next()) {
+				Map<String,Object> msg = new HashMap<>();
+				msg.put("sequence", rs.getLong(1));
+				msg.put("timestampUnixMs", rs.getLong(2));
+				msg.put("data", rs.getString(3));
+				msg.put("markedRead", rs.getBoolean(4));
+				result.add(msg);
+			}
+		}
+		return result;
+	}
+	
+	
+	// Returns the best matches first, each with its FTS5 rank. Each search term is matched literally
+	// (as an FTS5 string), so the user query cannot contain FTS5 syntax errors. Absent filters match everything.
+	// Ranks are only comparable among results from the same database file.
+	public List<Map<String,Object>> searchMessages(String query, Optional<Integer> profileId, Optional<Long> windowId,
+			Optional<Long> timestampStart, Optional<Long> timestampEnd, int limit, int offset) throws SQLException {
+		return searchMessages(query, profileId, windowId, timestampStart, timestampEnd, Optional.empty(),
+			"processed_messages_fts.rank", limit, offset);
+	}
+	
+	
+	// Like searchMessages(), but returns the newest matches first, optionally only those strictly before the given
+	// {timestampUnixMs, windowId, sequence} position. Unlike ranks, positions are comparable across database files.
+	public List<Map<String,Object>> searchMessagesByTime(String query, Optional<Integer> profileId, Optional<Long> windowId,
+			Optional<Long> timestampStart, Optional<Long> timestampEnd, Optional<long[]> before, int limit) throws SQLException {
+		return searchMessages(query, profileId, windowId, timestampStart, timestampEnd, before,
+			"timestamp_unix_ms DESC, processed_messages.window_id DESC, sequence DESC", limit, 0);
+	}
+	
+	
+	private List<Map<String,Object>> searchMessages(String query, Optional<Integer> profileId, Optional<Long> windowId,
+			Optional<Long> timestampStart, Optional<Long> timestampEnd, Optional<long[]> before, String order, int limit, int offset) throws SQLException {
+		
+		List<String> terms = new ArrayList<>();
+		for (String term : query.trim().split("\\s+", -1)) {
+			if (!term.isEmpty())
+				terms.add("\"" + term.replace("\"", "\"\"") + "\"");
+		}
+		List<Map<String,Object>> result = new ArrayList<>();
+		if (terms.isEmpty())
+			return result;
+		
+		try (PreparedStatement st = connection.prepareStatement("SELECT message_windows.profile_id, processed_messages.window_id, sequence, timestamp_unix_ms, processed_messages.data, processed_messages_fts.rank "
+				+ "FROM processed_messages_fts JOIN processed_messages ON processed_messages.message_id=processed_messages_fts.rowid "
+				+ "JOIN message_windows ON message_windows.window_id=processed_messages.window_id "
+				+ "WHERE processed_messages_fts MATCH ? and (? is null or profile_id=?) and (? is null or processed_messages.window_id=?) "
+				+ "and (? is null or ?<=timestamp_unix_ms) and (? is null or timestamp_unix_ms<?) "
+				+ "and (? is null or (timestamp_unix_ms, processed_messages.window_id, sequence)<(?,?,?)) "
+				+ "ORDER BY " + order + " LIMIT ? OFFSET ?")) {
+			st.setString(1, String.join(" ", terms));
+			st.setObject(2, profileId.orElse(null));
+			st.setObject(3, profileId.orElse(null));
+			st.setObject(4, windowId.orElse(null));
+			st.setObject(5, windowId.orElse(null));
+			st.setObject(6, timestampStart.orElse(null));
+			st.setObject(7, timestampStart.orElse(null));
+			st.setObject(8, timestampEnd.orElse(null));
+			st.setObject(9, timestampEnd.orElse(null));
+			st.setObject(10, before.isPresent() ? 1 : null);
+			for (int k = 0; k < 3; k++)
+				st.setObject(11 + k, before.isPresent() ? before.get()[k] : null);
+			st.setInt(14, limit);
+			st.setInt(15, offset);
 			try (ResultSet rs = st.executeQuery()) {
 				while (rs.next()) {
 					Map<String,Object> msg = new HashMap<>();
-					msg.put("sequence", rs.getLong(1));
-					msg.put("timestampUnixMs", rs.getLong(2));
-					msg.put("data", rs.getString(3));
-					msg.put("markedRead", rs.getBoolean(4));
+					msg.put("profileId", rs.getInt(1));
+					msg.put("windowId", rs.getLong(2));
+					msg.put("sequence", rs.getLong(3));
+					msg.put("timestampUnixMs", rs.getLong(4));
+					msg.put("data", rs.getString(5));
+					msg.put("rank", rs.getDouble(6));  // Lower is better
 					result.add(msg);
 				}
 			}
@@ -0,0 +1,142 @@
+package io.nayuki.mamirc;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+
+/*
+ * Decides which database file holds the data of each IRC network profile. By default
+ * everything is in the main file. If the configuration names a "Profile shard directory",
+ * each profile's connection events, message windows and processed messages go to its own
+ * file there instead, so that every profile can be written by its own archiver thread
+ * without contending for one SQLite write lock. The main file keeps the configuration,
+ * the profiles and the list of connections, plus any connection events written before sharding
+ * was enabled. Sharding cannot be enabled once the main file has message windows, because
+ * new messages would then go to a second window of the same name in the shard.
+ *
+ * A shard is a complete database with the usual schema. It mirrors the profile row and the
+ * rows of the profile's connections, so that its foreign keys hold. Its window IDs start at
+ * (profileId + 1) * WINDOW_ID_STRIDE, so they never collide with another file's, and the
+ * file that holds a window can be computed from its ID alone.
+ */
+final class DatabaseShards {
+	
+	private final File mainFile;
+	private final Optional<File> directory;  // Empty if not sharded
+	private Set<Integer> initializedShards = new HashSet<>();  // Guarded by this object's lock
+	
+	
+	public DatabaseShards(File mainFile) throws IOException, SQLException {
+		this.mainFile = mainFile;
+		try (Database db = new Database(mainFile)) {
+			directory = db.getConfigurationValue("Profile shard directory").map(File::new);
+			if (directory.isPresent() && db.hasMessageWindows())
+				throw new IllegalStateException("Profile shards cannot be enabled on a database that already has message windows");
+		}
+		if (directory.isPresent() && !directory.get().isDirectory() && !directory.get().mkdirs())
+			throw new IOException("Cannot create shard directory: " + directory.get());
+	}
+	
+	
+	public boolean isSharded() {
+		return directory.isPresent();
+	}
+	
+	
+	public File getMainFile() {
+		return mainFile;
+	}
+	
+	
+	// Returns the file for new data of the given profile, creating the shard if necessary.
+	public synchronized File getProfileFile(int profileId) throws IOException, SQLException {
+		if (directory.isEmpty())
+			return mainFile;
+		File result = new File(directory.get(), String.format("profile-%d.sqlite", profileId));
+		if (initializedShards.contains(profileId))
+			return result;
+		if (!result.isFile() || result.length() == 0) {
+			String name;
+			try (Database db = new Database(mainFile)) {
+				name = db.getProfileName(profileId);
+			}
+			try (Database db = new Database(result)) {
+				db.initializeShard(profileId, name, (profileId + 1L) * WINDOW_ID_STRIDE);
+			}
+		}
+		initializedShards.add(profileId);
+		return result;
+	}
+	
+	
+	// Returns the existing shard of the given profile, or empty if it has none (yet). Never creates
+	// a file, so it is safe on read paths, even for profile IDs that come from a client.
+	public synchronized Optional<File> findProfileFile(int profileId) {
+		if (directory.isEmpty())
+			return Optional.of(mainFile);
+		File result = new File(directory.get(), String.format("profile-%d.sqlite", profileId));
+		if (initializedShards.contains(profileId) || result.isFile() && result.length() > 0)
+			return Optional.of(result);
+		return Optional.empty();
+	}
+	
+	
+	// Returns the file that can hold the given window, or empty if there is none (so the window does
+	// not exist). Windows in the main file have small IDs. Never creates a file, like findProfileFile().
+	public Optional<File> findWindowFile(long windowId) {
+		if (directory.isEmpty() || windowId < WINDOW_ID_STRIDE)
+			return Optional.of(mainFile);
+		long profileId = windowId / WINDOW_ID_STRIDE - 1;
+		if (profileId > Integer.MAX_VALUE)
+			return Optional.empty();
+		return findProfileFile((int)profileId);
+	}
+	
+	
+	// Returns a key for the given file in shard-qualified cursors and metric labels: "main", or the profile ID.
+	public String getShardKey(File file) {
+		if (file.equals(mainFile))
+			return "main";
+		String name = file.getName();
+		return name.substring(8, name.length() - 7);  // Strip "profile-" and ".sqlite"
+	}
+	
+	
+	// Returns the main file followed by every existing shard, in ascending profile ID. Creates no file.
+	public List<File> getAllFiles() throws IOException, SQLException {
+		List<File> result = new ArrayList<>();
+		result.add(mainFile);
+		if (directory.isPresent()) {
+			List<Integer> profIds;
+			try (Database db = new Database(mainFile)) {
+				profIds = db.getProfileIds();
+			}
+			for (int profId : profIds)
+				findProfileFile(profId).ifPresent(result::add);
+		}
+		return result;
+	}
+	
+	
+	// Adds a connection in the main file and mirrors it into the profile's shard. Returns its ID.
+	// See Database.addConnection() about the processor flag.
+	public long addConnection(Database mainDb, int profileId, boolean forProcessor) throws IOException, SQLException {
+		long result = mainDb.addConnection(profileId, forProcessor);
+		if (directory.isPresent()) {
+			try (Database db = new Database(getProfileFile(profileId))) {
+				db.mirrorConnection(result, profileId, forProcessor);
+			}
+		}
+		return result;
+	}
+	
+	
+	public static final long WINDOW_ID_STRIDE = 1L << 32;
+	
+}
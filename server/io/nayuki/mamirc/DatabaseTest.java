@@ -0,0 +1,44 @@
+package io.nayuki.mamirc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import org.junit.Test;
+
+
+public final class DatabaseTest {
+	
+	@Test public void testIncrementalVacuumFreesRequestedPages() throws IOException, SQLException {
+		File file = File.createTempFile("mamirc-test-", ".sqlite");
+		try {
+			file.delete();  // So that the database is created with the current schema
+			try (Database db = new Database(file)) {
+				assertTrue(db.isIncrementalVacuumEnabled());
+			}
+			
+			// Leave plenty of free pages behind
+			try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + file);
+					Statement st = con.createStatement()) {
+				st.executeUpdate("CREATE TABLE filler(data BLOB NOT NULL)");
+				st.executeUpdate("WITH RECURSIVE n(i) AS (SELECT 1 UNION ALL SELECT i+1 FROM n WHERE i<1000) "
+					+ "INSERT INTO filler SELECT randomblob(4000) FROM n");
+				st.executeUpdate("DROP TABLE filler");
+			}
+			
+			try (Database db = new Database(file)) {
+				long before = db.getFreePageCount();
+				assertTrue(before > 100);
+				db.incrementalVacuum(100);
+				assertEquals(before - 100, db.getFreePageCount());
+			}
+		} finally {
+			file.delete();
+		}
+	}
+	
+}
@@ -0,0 +1,99 @@
+package io.nayuki.mamirc;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/*
+ * Compresses the serialized data of a single connection event for storage in the
+ * connection_events table. A compressed blob is the marker byte 'Z' followed by a raw
+ * deflate stream that uses a preset dictionary of common IRC text. No uncompressed
+ * blob begins with 'Z' (see ConnectionEvent.toBytes()), so old and new rows can coexist
+ * and decompress() passes uncompressed data through unchanged.
+ * The native zlib state of each direction is created on first use, and close() frees it.
+ * Not thread-safe; each thread should use its own instance.
+ */
+final class EventDataCompressor {
+	
+	private Deflater deflater = null;
+	private Inflater inflater = null;
+	private byte[] buffer = new byte[1024];
+	
+	
+	// Returns a new array, or the given array if compression would not make it smaller.
+	public byte[] compress(byte[] data) {
+		if (deflater == null)
+			deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+		deflater.reset();
+		deflater.setDictionary(DICTIONARY);
+		deflater.setInput(data);
+		deflater.finish();
+		int len = 1;
+		while (!deflater.finished()) {
+			if (len >= data.length)
+				return data;  // Compression does not help
+			if (len == buffer.length)
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			len += deflater.deflate(buffer, len, buffer.length - len);
+		}
+		if (len >= data.length)
+			return data;
+		buffer[0] = MARKER;
+		return Arrays.copyOf(buffer, len);
+	}
+	
+	
+	public byte[] decompress(byte[] data) {
+		if (data.length == 0 || data[0] != MARKER)
+			return data;
+		if (inflater == null)
+			inflater = new Inflater(true);
+		inflater.reset();
+		inflater.setDictionary(DICTIONARY);  // A raw stream has no header to request it
+		inflater.setInput(data, 1, data.length - 1);
+		int len = 0;
+		try {
+			while (!inflater.finished()) {
+				if (len == buffer.length)
+					buffer = Arrays.copyOf(buffer, buffer.length * 2);
+				int n = inflater.inflate(buffer, len, buffer.length - len);
+				if (n == 0 && inflater.needsInput())
+					throw new IllegalArgumentException("Truncated compressed data");
+				len += n;
+			}
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("Invalid compressed data", e);
+		}
+		return Arrays.copyOf(buffer, len);
+	}
+	
+	
+	// Ends the native zlib state right away instead of leaving it to the garbage collector. This object must not be used afterward.
+	public void close() {
+		if (deflater != null)
+			deflater.end();
+		if (inflater != null)
+			inflater.end();
+	}
+	
+	
+	private static final byte MARKER = 'Z';
+	
+	// Deflate favors matches at short distances, so the most common strings come last.
+	// Changing this breaks every existing compressed row; use a new marker byte instead.
+	private static final byte[] DICTIONARY = String.join("",
+		"opening\nopened\nread exception\nwrite exception\nclosing\nclosed\n",
+		"Connection reset by peer", "Ping timeout: ", "Remote host closed the connection",
+		"*** Looking up your hostname", "*** Found your hostname", "*** Checking Ident",
+		":Welcome to the Internet Relay Chat Network ", ":End of /NAMES list.", ":End of /MOTD command.",
+		" 001 ", " 002 ", " 003 ", " 004 ", " 005 ", " 251 ", " 252 ", " 253 ", " 254 ", " 255 ",
+		" 265 ", " 266 ", " 332 ", " 333 ", " 353 ", " 366 ", " 372 ", " 375 ", " 376 ",
+		"USER ", "NICK ", "PONG :", "PING :", " TOPIC #", " KICK #", " PART #", " NICK :", " MODE #",
+		" QUIT :Quit: ", " QUIT :", " JOIN :#", " JOIN #", " NOTICE ", " PRIVMSG #", " :\u0001ACTION ",
+		"!~", ".com ", ".net ", ".org ", "/ip.", "@user/", "@gateway/web/", "@"
+	).getBytes(StandardCharsets.ISO_8859_1);
+	
+}
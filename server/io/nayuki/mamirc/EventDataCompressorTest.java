@@ -0,0 +1,51 @@
+package io.nayuki.mamirc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import org.junit.Test;
+
+
+public final class EventDataCompressorTest {
+	
+	@Test public void testTypicalLine() {
+		EventDataCompressor comp = new EventDataCompressor();
+		byte[] data = "R:nick!~user@example.com PRIVMSG #channel :Hello, world".getBytes(StandardCharsets.UTF_8);
+		byte[] packed = comp.compress(data);
+		assertEquals('Z', packed[0]);
+		assertTrue(packed.length < data.length);
+		assertArrayEquals(data, comp.decompress(packed));
+	}
+	
+	@Test public void testUncompressedPassthrough() {
+		EventDataCompressor comp = new EventDataCompressor();
+		for (String s : new String[]{"", "closed", "RPING :x", "SPONG :x"}) {
+			byte[] data = s.getBytes(StandardCharsets.UTF_8);
+			assertArrayEquals(data, comp.decompress(data));
+		}
+	}
+	
+	@Test public void testIncompressible() {
+		EventDataCompressor comp = new EventDataCompressor();
+		byte[] data = new byte[300];
+		new Random(1).nextBytes(data);
+		data[0] = 'R';
+		assertArrayEquals(data, comp.compress(data));
+	}
+	
+	@Test public void testRandomRoundTrip() {
+		EventDataCompressor comp = new EventDataCompressor();
+		Random rand = new Random(2);
+		for (int i = 0; i < 1000; i++) {
+			byte[] data = new byte[rand.nextInt(3000) + 1];
+			for (int j = 0; j < data.length; j++)
+				data[j] = (byte)" abcdePRIVMSG#:"
+					.charAt(rand.nextInt(15));
+			data[0] = 'S';
+			assertArrayEquals(data, comp.decompress(comp.compress(data)));
+		}
+	}
+	
+}
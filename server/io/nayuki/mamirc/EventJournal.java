@@ -0,0 +1,236 @@
+package io.nayuki.mamirc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+
+/*
+ * An optional append-only log of raw connection events that sits in front of the
+ * connection_events table. Core appends each event synchronously into a memory-mapped
+ * segment file, which survives a crash of this process as soon as the append returns.
+ * A background thread bulk-loads the records into the database and deletes segments
+ * that are completely loaded. On startup, all existing segments are loaded first.
+ * Loading is idempotent because each record carries its explicit event sequence number.
+ *
+ * Record format (big endian): int payloadLength, int crc32OfPayload, then the payload:
+ * long connectionId, long sequence, long timestampUnixMs, byte[] eventData.
+ * A payload length of zero (the initial content of a new segment) marks the end.
+ */
+final class EventJournal {
+	
+	private final File directory;
+	private final File databaseFile;
+	private final Thread coreWorker;
+	
+	// All the fields below are guarded by this object's lock.
+	private List<Segment> segments = new ArrayList<>();  // Oldest first; the last one is the active segment
+	private long nextSegmentNumber;
+	private Map<Long,Long> nextSequences = new HashMap<>();  // Keyed by connection ID
+	private boolean terminationRequested = false;
+	
+	private CRC32 checksum = new CRC32();
+	private Thread loader;
+	
+	
+	public EventJournal(File dir, File dbFile, Thread core) throws IOException, SQLException {
+		directory = dir;
+		databaseFile = dbFile;
+		coreWorker = core;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create journal directory: " + directory);
+		
+		// Crash recovery
+		File[] files = directory.listFiles((d, name) -> name.matches("journal-[0-9]{16}\\.seg"));
+		Arrays.sort(files);
+		nextSegmentNumber = 0;
+		for (File f : files) {
+			Segment seg = new Segment(f);
+			seg.sealed = true;
+			segments.add(seg);
+			nextSegmentNumber = Long.parseLong(f.getName().substring(8, 24)) + 1;
+		}
+		try (Database db = new Database(databaseFile)) {
+			loadSegments(db);
+		}
+		
+		loader = new Thread(this::loader);
+		loader.start();
+	}
+	
+	
+	public synchronized void append(long connectionId, ConnectionEvent ev) throws IOException {
+		if (terminationRequested)
+			throw new IllegalStateException("Journal closed");
+		long sequence = nextSequences.getOrDefault(connectionId, 0L);
+		byte[] data = ev.toBytes();
+		int payloadLen = Math.addExact(data.length, 24);
+		if (payloadLen + 8 > SEGMENT_SIZE)
+			throw new IllegalArgumentException("Event too large");
+		
+		Segment seg = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		if (seg == null || seg.sealed || seg.writePosition + 8 + payloadLen > SEGMENT_SIZE) {
+			if (seg != null)
+				seg.sealed = true;
+			seg = new Segment(new File(directory, String.format("journal-%016d.seg", nextSegmentNumber)));
+			nextSegmentNumber++;
+			segments.add(seg);
+		}
+		
+		ByteBuffer buf = seg.buffer;
+		int start = seg.writePosition;
+		buf.position(start + 8);
+		buf.putLong(connectionId);
+		buf.putLong(sequence);
+		buf.putLong(ev.timestampUnixMs);
+		buf.put(data);
+		checksum.reset();
+		checksum.update(buf.duplicate().position(start + 8).limit(start + 8 + payloadLen));
+		buf.putInt(start + 4, (int)checksum.getValue());
+		buf.putInt(start, payloadLen);  // Written last, so a torn record is never visible
+		seg.writePosition = start + 8 + payloadLen;
+		
+		if (ev instanceof ConnectionEvent.Closed)
+			nextSequences.remove(connectionId);
+		else
+			nextSequences.put(connectionId, sequence + 1);
+		notify();
+	}
+	
+	
+	// Loads all remaining records into the database and stops the background thread.
+	public void close() throws InterruptedException {
+		synchronized(this) {
+			terminationRequested = true;
+			notify();
+		}
+		loader.join();
+	}
+	
+	
+	private void loader() {
+		try (Database db = new Database(databaseFile)) {
+			while (true) {
+				boolean terminate;
+				synchronized(this) {
+					terminate = terminationRequested;
+					if (!terminate && !hasUnloadedRecords())
+						wait();
+				}
+				loadSegments(db);
+				if (terminate)
+					break;
+				Thread.sleep(LOAD_INTERVAL_MS);  // Let records accumulate into bigger transactions
+			}
+		} catch (IOException|SQLException|InterruptedException e) {
+			coreWorker.interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+	
+	
+	private synchronized boolean hasUnloadedRecords() {
+		for (Segment seg : segments) {
+			if (seg.sealed || seg.loadPosition < seg.writePosition)
+				return true;
+		}
+		return false;
+	}
+	
+	
+	// Applies every record appended so far, then deletes the segments that can no longer grow.
+	private void loadSegments(Database db) throws IOException, SQLException {
+		List<Segment> segs;
+		int[] limits;
+		boolean[] sealed;  // A segment can become sealed while it is being loaded
+		synchronized(this) {
+			segs = new ArrayList<>(segments);
+			limits = new int[segs.size()];
+			sealed = new boolean[segs.size()];
+			for (int i = 0; i < segs.size(); i++) {
+				Segment seg = segs.get(i);
+				sealed[i] = seg.sealed;
+				limits[i] = sealed[i] ? SEGMENT_SIZE : seg.writePosition;
+			}
+		}
+		
+		CRC32 crc = new CRC32();
+		db.beginImmediateTransaction();
+		for (int i = 0; i < segs.size(); i++) {
+			Segment seg = segs.get(i);
+			ByteBuffer buf = seg.buffer.duplicate();
+			int pos = seg.loadPosition;
+			while (pos + 8 <= limits[i]) {
+				int payloadLen = buf.getInt(pos);
+				if (payloadLen < 24 || pos + 8 + payloadLen > limits[i])
+					break;  // End of segment, or torn write at crash
+				ByteBuffer payload = buf.duplicate().position(pos + 8).limit(pos + 8 + payloadLen);
+				crc.reset();
+				crc.update(payload.duplicate());
+				if ((int)crc.getValue() != buf.getInt(pos + 4))
+					break;
+				long connectionId = payload.getLong();
+				long sequence = payload.getLong();
+				long timestamp = payload.getLong();
+				byte[] data = new byte[payload.remaining()];
+				payload.get(data);
+				db.addConnectionEvent(connectionId, sequence, timestamp, data);
+				pos += 8 + payloadLen;
+			}
+			seg.loadPosition = pos;
+		}
+		db.commitTransaction();
+		
+		synchronized(this) {
+			for (int i = 0; i < segs.size(); i++) {
+				if (sealed[i]) {
+					segments.remove(segs.get(i));
+					segs.get(i).delete();
+				}
+			}
+		}
+	}
+	
+	
+	private static final int SEGMENT_SIZE = 16 << 20;  // In bytes
+	private static final long LOAD_INTERVAL_MS = 100;
+	
+	
+	
+	private static final class Segment {
+		
+		public final File file;
+		public final MappedByteBuffer buffer;
+		public int writePosition;  // Guarded by the journal's lock
+		public int loadPosition = 0;  // Only accessed by the loading thread
+		public boolean sealed = false;  // Guarded by the journal's lock
+		
+		
+		public Segment(File file) throws IOException {
+			this.file = file;
+			try (FileChannel ch = FileChannel.open(file.toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				buffer = ch.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+			}
+			writePosition = 0;
+		}
+		
+		
+		public void delete() throws IOException {
+			if (!file.delete())
+				throw new IOException("Cannot delete journal segment: " + file);
+		}
+		
+	}
+	
+}
@@ -29,8 +29,9 @@ final class FastQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
 	}
 	
 	
+	// Only approximate while other threads are putting or taking.
 	@Override public int size() {
-		throw new UnsupportedOperationException();
+		return size.availablePermits();
 	}
 	
 	@Override public int remainingCapacity() {
@@ -0,0 +1,182 @@
+package io.nayuki.mamirc;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import io.nayuki.json.Json;
+
+
+/*
+ * Exports processed messages to a gzip-compressed NDJSON file, and imports such a file into
+ * another database. Each line is one message object with the keys profile (name), window
+ * (display name), sequence, timestampUnixMs and data, in order of window and sequence.
+ * Both directions stream in constant memory. Profiles are matched by name, and must already
+ * exist in the target database. Imported messages get new sequence numbers, and are marked as
+ * read. A target window must not have messages yet (otherwise the import stops there), because
+ * jumping to a point in time relies on each window's sequence order being in time order.
+ * The import uses large transactions and indexes the full text of the new messages once at the
+ * end, instead of once per message. Must not be run while the client itself is running on the
+ * same database file.
+ */
+final class HistoryTransfer {
+	
+	private final DatabaseShards shards;
+	
+	
+	public HistoryTransfer(File dbFile) throws IOException, SQLException {
+		shards = new DatabaseShards(dbFile);
+	}
+	
+	
+	// Exports the given profile or window, or everything if both are empty. Returns the number of messages.
+	public long exportTo(File outFile, Optional<Integer> profileId, Optional<Long> windowId) throws IOException, SQLException {
+		List<File> files = new ArrayList<>();
+		if (windowId.isPresent())
+			files.add(shards.findWindowFile(windowId.get()).orElseThrow(() -> new IllegalArgumentException("Window not found")));
+		else
+			files.addAll(shards.getAllFiles());
+		
+		long[] count = {0};
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(
+				new GZIPOutputStream(new FileOutputStream(outFile), BUFFER_SIZE), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+			for (File file : files) {
+				try (Database db = new Database(file)) {
+					db.forEachMessage(profileId, windowId, msg -> {
+						try {
+							out.write(Json.serialize(msg));
+							out.write('\n');
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+						count[0]++;
+					});
+				} catch (UncheckedIOException e) {
+					throw e.getCause();
+				}
+			}
+		}
+		return count[0];
+	}
+	
+	
+	// Returns the number of messages imported. If the import fails, the messages committed
+	// so far are kept, and are still indexed and marked as read.
+	@SuppressWarnings("unchecked")
+	public long importFrom(File inFile) throws IOException, SQLException {
+		Map<String,Integer> profileIds = new HashMap<>();  // Keyed by profile name
+		Map<File,Target> targets = new HashMap<>();
+		long count = 0;
+		boolean ok = false;
+		try (Database mainDb = new Database(shards.getMainFile());
+				BufferedReader in = new BufferedReader(new InputStreamReader(
+					new GZIPInputStream(new FileInputStream(inFile), BUFFER_SIZE), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+			long uncommitted = 0;
+			for (String line = in.readLine(); line != null; line = in.readLine()) {
+				if (line.isEmpty())
+					continue;
+				Map<String,Object> msg = (Map<String,Object>)Json.parse(line);
+				String profName = (String)msg.get("profile");
+				Integer profId = profileIds.get(profName);
+				if (profId == null) {
+					profId = mainDb.getProfileIdByName(profName).orElseThrow(
+						() -> new IllegalArgumentException("Profile not found in target database: " + profName));
+					profileIds.put(profName, profId);
+				}
+				File file = shards.getProfileFile(profId);
+				Target target = targets.get(file);
+				if (target == null) {
+					target = new Target(file);
+					targets.put(file, target);
+				}
+				
+				String window = (String)msg.get("window");
+				long windowId = target.database.getOrAddMessageWindow(profId, window);
+				if (!target.readEnds.containsKey(windowId)) {
+					if (target.database.hasProcessedMessages(windowId))
+						throw new IllegalArgumentException("Target window already has messages: " + profName + " " + window);
+					target.readEnds.put(windowId, target.database.getNextMessageSequence(windowId));
+				}
+				target.database.addProcessedMessage(profId, window, ((Number)msg.get("timestampUnixMs")).longValue(), (String)msg.get("data"), true);
+				target.readEnds.merge(windowId, 1L, Long::sum);
+				count++;
+				uncommitted++;
+				if (uncommitted >= MESSAGES_PER_TRANSACTION) {
+					for (Target t : targets.values())
+						t.commit();
+					uncommitted = 0;
+					System.err.printf("Progress: %d messages imported%n", count);
+				}
+			}
+			for (Target t : targets.values())
+				t.commit();
+			ok = true;
+		} finally {
+			for (Target t : targets.values()) {
+				t.database.close();  // Rolls back anything uncommitted
+				try (Database db = new Database(t.file)) {
+					db.beginImmediateTransaction();
+					db.indexMessagesAfter(t.startMessageId);
+					db.commitTransaction();
+					for (Map.Entry<Long,Long> entry : t.committedReadEnds.entrySet())
+						db.markMessagesRead(entry.getKey(), entry.getValue());
+				} catch (IOException|SQLException e) {
+					if (ok)
+						throw e;
+					e.printStackTrace();  // Keep the original exception
+				}
+			}
+		}
+		return count;
+	}
+	
+	
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final long MESSAGES_PER_TRANSACTION = 100_000;
+	
+	
+	
+	// One database file being imported into, kept in an open transaction.
+	private static final class Target {
+		
+		public final File file;
+		public final Database database;
+		public final long startMessageId;  // Messages above this are new
+		
+		// Both keyed by window ID: the end of the imported range of each window that received messages
+		public Map<Long,Long> readEnds = new HashMap<>();
+		public Map<Long,Long> committedReadEnds = new HashMap<>();
+		
+		
+		public Target(File file) throws IOException, SQLException {
+			this.file = file;
+			database = new Database(file);
+			database.beginImmediateTransaction();
+			startMessageId = database.getMaxMessageId();
+		}
+		
+		
+		public void commit() throws SQLException {
+			database.commitTransaction();
+			committedReadEnds.putAll(readEnds);
+			database.beginImmediateTransaction();
+		}
+		
+	}
+	
+}
@@ -2,26 +2,46 @@ package io.nayuki.mamirc;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Optional;
-import java.util.concurrent.BlockingQueue;
+import java.util.List;
 
 
 final class IrcServerConnection extends ConnectionState {
 	
-	private final IrcServer server;
+	private final Core core;
+	private final Archiver eventArchiver;
+	private final Archiver messageArchiver;  // Null if a separate processor makes the messages
+	private final List<IrcServer> servers;  // In order of preference
 	private final String characterEncoding;
 	
 	private Socket socket = null;
+	private OutputStream output = null;  // Set before the writer starts
 	private boolean closeRequested = false;
 	
+	private final Metrics.Counter linesReceived;
+	private final Metrics.Counter linesSent;
+	private final Metrics.Histogram lag;
 	
-	public IrcServerConnection(long conId, int profId, Core core, Archiver archiver, IrcServer server, String encoding) {
-		super(conId, profId, core, archiver);
-		this.server = server;
+	long nextEventSequence = 0;  // Guarded by the core's lock
+	
+	
+	public IrcServerConnection(long conId, int profId, Core core, Archiver eventArchiver, Archiver messageArchiver, List<IrcServer> servers, String encoding, OutboundScheduler outbound) {
+		super(conId, profId, core.getDatabaseFile());
+		this.core = core;
+		this.eventArchiver = eventArchiver;
+		this.messageArchiver = messageArchiver;
+		if (servers.isEmpty())
+			throw new IllegalArgumentException("No servers");
+		this.servers = servers;
 		this.characterEncoding = encoding;
+		this.outbound = outbound;
+		linesReceived = core.getLinesReceivedMetric().get(Long.toString(conId));
+		linesSent = core.getLinesSentMetric().get(Long.toString(conId));
+		lag = core.getLagMetric().get(Long.toString(conId));
 		new Thread(this::readWorker).start();
 	}
 	
@@ -36,11 +56,27 @@ final class IrcServerConnection extends ConnectionState {
 	}
 	
 	
+	@Override protected void postMessage(int profileId, String windowDisplayName, long timestampUnixMs, String data) {
+		if (core.isProcessingMessages())
+			messageArchiver.postMessage(profileId, windowDisplayName, timestampUnixMs, data);
+	}
+	
+	
+	// For the raw events of this connection. (Its messages go to a separate archiver.)
+	public Archiver getEventArchiver() {
+		return eventArchiver;
+	}
+	
+	
+	@Override protected void lagMeasured(long roundTripNanos) {
+		lag.observe(roundTripNanos);
+	}
+	
+	
 	@Override public void close() {
 		synchronized(this) {
-			if (socket == null)
-				closeRequested = true;
-			else {
+			closeRequested = true;
+			if (socket != null) {
 				postEvent(new ConnectionEvent.Closing());
 				try {
 					socket.close();
@@ -49,16 +85,48 @@ final class IrcServerConnection extends ConnectionState {
 				}
 			}
 		}
-		writeQueue.add(Optional.empty());
+		outbound.shutdown();
+	}
+	
+	
+	
+	public synchronized boolean isCloseRequested() {
+		return closeRequested;
 	}
 	
 	
 	
 	/*---- Reader members ----*/
 	
+	// The Opening event names the server that was actually reached, but is timestamped
+	// when the attempt to it began. If no server is reachable, it names the first one.
 	private void readWorker() {
-		postEvent(new ConnectionEvent.Opening(server.hostname, server.port, characterEncoding));
-		try (Socket sock = new Socket(server.hostname, server.port)) {
+		try {
+			ServerConnector.Result conn;
+			try {
+				conn = ServerConnector.connect(servers);
+			} catch (IOException e) {
+				postEvent(new ConnectionEvent.Opening(servers.get(0).hostname, servers.get(0).port, characterEncoding));
+				throw e;
+			}
+			ConnectionEvent opening = new ConnectionEvent.Opening(conn.server.hostname, conn.server.port, characterEncoding);
+			opening.timestampUnixMs = conn.startTimeUnixMs;
+			postEvent(opening);
+			readLoop(conn);
+		} catch (IOException e) {
+			postEvent(new ConnectionEvent.ReadException(e.getMessage()));
+		} finally {
+			postEvent(new ConnectionEvent.Closed());
+			core.getLinesReceivedMetric().remove(Long.toString(connectionId));
+			core.getLinesSentMetric().remove(Long.toString(connectionId));
+			core.getLagMetric().remove(Long.toString(connectionId));
+		}
+	}
+	
+	
+	private void readLoop(ServerConnector.Result conn) throws IOException {
+		Socket sock = conn.channel.socket();
+		try (sock) {
 			postEvent(new ConnectionEvent.Opened(sock.getInetAddress()));
 			synchronized(this) {
 				socket = sock;
@@ -69,10 +137,25 @@ final class IrcServerConnection extends ConnectionState {
 				}
 			}
 			
+			InputStream in;
+			if (conn.server.tlsMode == IrcServer.TlsMode.UNSECURED) {
+				in = sock.getInputStream();
+				output = sock.getOutputStream();
+			} else {
+				TlsTransport tls;
+				try {
+					tls = new TlsTransport(conn.channel, conn.server);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+				core.getTlsHandshakeMetric().get(Boolean.toString(tls.isResumed)).observe(tls.handshakeNanos);
+				in = tls.getInputStream();
+				output = tls.getOutputStream();
+			}
+			
 			Thread writer = new Thread(this::writeWorker);
 			writer.start();
 			try {
-				InputStream in = sock.getInputStream();
 				byte[] readBuf = new byte[READ_BUFFER_SIZE];
 				byte prevByte = 0;
 				byte[] lineBuf = new byte[Math.addExact(MAX_LINE_SIZE, 1)];
@@ -82,13 +165,18 @@ final class IrcServerConnection extends ConnectionState {
 					int readLen = in.read(readBuf);
 					if (readLen == -1)
 						break;
+					long readReturnTime = System.nanoTime();
 					
 					for (int i = 0; i < readLen; i++) {
 						byte b = readBuf[i];
 						if (b == '\n' && prevByte == '\r');  // Ignore
 						else if (b == '\r' || b == '\n') {
-							if (lineLen <= MAX_LINE_SIZE)
-								postEvent(new ConnectionEvent.LineReceived(Arrays.copyOf(lineBuf, lineLen)));
+							if (lineLen <= MAX_LINE_SIZE) {
+								ConnectionEvent ev = new ConnectionEvent.LineReceived(Arrays.copyOf(lineBuf, lineLen));
+								ev.trace = LineTraceEvent.start(connectionId, readReturnTime);
+								postEvent(ev);
+								linesReceived.increment();
+							}
 							lineLen = 0;
 						} else if (lineLen < lineBuf.length) {
 							lineBuf[lineLen] = b;
@@ -100,53 +188,58 @@ final class IrcServerConnection extends ConnectionState {
 			} finally {
 				writer.interrupt();
 			}
-		} catch (IOException e) {
-			postEvent(new ConnectionEvent.ReadException(e.getMessage()));
-		} finally {
-			postEvent(new ConnectionEvent.Closed());
 		}
 	}
 	
 	
 	private static final int READ_BUFFER_SIZE = 4096;  // Can be any positive number
+	private static final int WRITE_BUFFER_SIZE = 4096;  // Initial size; grows to fit a batch
 	private static final int MAX_LINE_SIZE = 1000;  // In bytes, excluding newlines
 	
 	
 	
 	/*---- Writer members ----*/
 	
-	private BlockingQueue<Optional<byte[]>> writeQueue = new FastQueue<>();
+	private final OutboundScheduler outbound;  // Paces writes to avoid flood disconnection
 	
 	
+	// The array must not be modified afterward, because it becomes the LineSent event's data.
 	public void postWriteLine(byte[] line) {
-		try {
-			writeQueue.put(Optional.of(line));
-		} catch (InterruptedException e) {
-			throw new AssertionError(e);
-		}
+		outbound.put(line);
 	}
 	
 	
 	private void writeWorker() {
 		try {
 			socket.setTcpNoDelay(false);
-			OutputStream out = socket.getOutputStream();
-			byte[] lineBuf = new byte[Math.addExact(MAX_LINE_SIZE, 2)];
+			OutputStream out = output;
+			byte[] writeBuf = new byte[WRITE_BUFFER_SIZE];
+			List<byte[]> batch = new ArrayList<>();
 			
 			while (true) {
-				Optional<byte[]> item = writeQueue.take();
-				if (item.isEmpty())
+				byte[] line = outbound.take();
+				if (line == null)
 					break;
 				
-				byte[] line = item.get();
-				int lineLen = line.length;
-				if (lineLen <= lineBuf.length - 2) {
-					System.arraycopy(line, 0, lineBuf, 0, lineLen);
-					lineBuf[lineLen++] = '\r';
-					lineBuf[lineLen++] = '\n';
-					out.write(lineBuf, 0, lineLen);
-					postEvent(new ConnectionEvent.LineSent(Arrays.copyOf(lineBuf, lineLen - 2)));
+				// Coalesce every line that may be sent right now into one write
+				int writeLen = 0;
+				batch.clear();
+				for (; line != null; line = outbound.tryTake()) {
+					int lineLen = line.length;
+					if (lineLen > MAX_LINE_SIZE)
+						continue;
+					if (writeLen + lineLen + 2 > writeBuf.length)
+						writeBuf = Arrays.copyOf(writeBuf, Math.max(writeBuf.length * 2, writeLen + lineLen + 2));
+					System.arraycopy(line, 0, writeBuf, writeLen, lineLen);
+					writeLen += lineLen;
+					writeBuf[writeLen++] = '\r';
+					writeBuf[writeLen++] = '\n';
+					batch.add(line);
 				}
+				out.write(writeBuf, 0, writeLen);
+				for (byte[] ln : batch)  // In wire order
+					postEvent(new ConnectionEvent.LineSent(ln));
+				linesSent.add(batch.size());
 			}
 			
 		} catch (IOException e) {
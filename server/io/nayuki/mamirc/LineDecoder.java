@@ -0,0 +1,98 @@
+package io.nayuki.mamirc;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+
+/*
+ * Decodes the bytes of IRC lines into strings for one connection, reusing its decoders and
+ * buffer across lines. A pure ASCII line (the vast majority) skips the decoder entirely.
+ * If the connection's encoding is UTF-8, a line that is not valid UTF-8 is decoded as
+ * windows-1252 instead, because clients on the same network often disagree on encoding and
+ * the old 8-bit encodings are by far the most common alternative. With any other encoding,
+ * malformed input is replaced as usual. Not thread-safe.
+ */
+final class LineDecoder {
+	
+	private final CharsetDecoder primary;
+	private final CharsetDecoder fallback;  // Null if the primary decoder replaces malformed input itself
+	private final boolean isAsciiCompatible;  // Whether bytes 0 to 127 decode to the same code points
+	private CharBuffer buffer = CharBuffer.allocate(512);
+	
+	
+	public LineDecoder(Charset charset) {
+		if (charset.equals(StandardCharsets.UTF_8)) {
+			primary = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT);
+			fallback = FALLBACK_CHARSET.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		} else {
+			primary = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			fallback = null;
+		}
+		
+		byte[] ascii = new byte[128];
+		for (int i = 0; i < ascii.length; i++)
+			ascii[i] = (byte)i;
+		isAsciiCompatible = new String(ascii, charset).equals(new String(ascii, StandardCharsets.US_ASCII));
+	}
+	
+	
+	public String decode(byte[] line) {
+		boolean ascii = true;
+		for (byte b : line) {
+			if (b < 0) {
+				ascii = false;
+				break;
+			}
+		}
+		if (ascii && isAsciiCompatible)
+			return new String(line, StandardCharsets.ISO_8859_1);  // Compact string copy, no decoding
+		
+		try {
+			return decode(primary, line);
+		} catch (CharacterCodingException e) {
+			try {
+				return decode(fallback, line);
+			} catch (CharacterCodingException ee) {
+				throw new AssertionError(ee);  // Replacement is on
+			}
+		}
+	}
+	
+	
+	private String decode(CharsetDecoder dec, byte[] line) throws CharacterCodingException {
+		int maxLen = (int)Math.ceil(line.length * (double)dec.maxCharsPerByte());
+		if (buffer.capacity() < maxLen)
+			buffer = CharBuffer.allocate(maxLen);
+		buffer.clear();
+		dec.reset();
+		ByteBuffer in = ByteBuffer.wrap(line);
+		check(dec.decode(in, buffer, true));
+		check(dec.flush(buffer));
+		buffer.flip();
+		return buffer.toString();
+	}
+	
+	
+	private static void check(CoderResult cr) throws CharacterCodingException {
+		if (cr.isError())
+			cr.throwException();
+		if (cr.isOverflow())
+			throw new AssertionError("Buffer sized by maxCharsPerByte");
+	}
+	
+	
+	private static final Charset FALLBACK_CHARSET = Charset.forName("windows-1252");
+	
+}
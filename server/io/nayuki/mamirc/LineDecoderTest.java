@@ -0,0 +1,49 @@
+package io.nayuki.mamirc;
+
+import static org.junit.Assert.assertEquals;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+
+public final class LineDecoderTest {
+	
+	@Test public void testAscii() {
+		LineDecoder dec = new LineDecoder(StandardCharsets.UTF_8);
+		assertEquals("PRIVMSG #chan :hello", dec.decode("PRIVMSG #chan :hello".getBytes(StandardCharsets.US_ASCII)));
+		assertEquals("", dec.decode(new byte[0]));
+	}
+	
+	@Test public void testValidUtf8() {
+		LineDecoder dec = new LineDecoder(StandardCharsets.UTF_8);
+		assertEquals("caf\u00E9 \u20AC \uD83D\uDE00", dec.decode("caf\u00E9 \u20AC \uD83D\uDE00".getBytes(StandardCharsets.UTF_8)));
+	}
+	
+	@Test public void testFallback() {
+		LineDecoder dec = new LineDecoder(StandardCharsets.UTF_8);
+		assertEquals("caf\u00E9 \u20AC", dec.decode(bytes('c', 'a', 'f', 0xE9, ' ', 0x80)));  // windows-1252
+		assertEquals("\u00E9", dec.decode(bytes(0xC3, 0xA9)));  // State is reset between lines
+	}
+	
+	@Test public void testOtherCharset() {
+		LineDecoder dec = new LineDecoder(Charset.forName("ISO-8859-1"));
+		assertEquals("\u00C3\u00A9", dec.decode(bytes(0xC3, 0xA9)));
+		LineDecoder dec16 = new LineDecoder(StandardCharsets.UTF_16BE);
+		assertEquals("AB", dec16.decode(bytes(0, 'A', 0, 'B')));
+	}
+	
+	@Test public void testLongLine() {
+		LineDecoder dec = new LineDecoder(StandardCharsets.UTF_8);
+		String s = "\u00E9".repeat(3000);
+		assertEquals(s, dec.decode(s.getBytes(StandardCharsets.UTF_8)));
+	}
+	
+	
+	private static byte[] bytes(int... vals) {
+		byte[] result = new byte[vals.length];
+		for (int i = 0; i < vals.length; i++)
+			result[i] = (byte)vals[i];
+		return result;
+	}
+	
+}
@@ -0,0 +1,114 @@
+package io.nayuki.mamirc;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+
+/*
+ * A Java Flight Recorder event that follows one IRC line through the ingest pipeline:
+ * socket read, Core queue, ConnectionState.handle(), Archiver queue (or journal append),
+ * and the SQLite commit. Disabled by default; enable it in a running process with e.g.
+ * "jcmd <pid> JFR.start settings=profile +io.nayuki.mamirc.LineTrace#enabled=true",
+ * or with a custom .jfc file. While disabled, no instances are allocated at all, because
+ * the creator checks isEnabled() first and a ConnectionEvent's trace field stays null.
+ *
+ * The event's own duration spans from the line being framed until both the Core worker and
+ * the archiver (or journal) are finished with it, so it is committed by whichever thread is last.
+ * Lines whose archiver item spills to disk lose their trace and are never committed.
+ */
+@Name("io.nayuki.mamirc.LineTrace")
+@Label("IRC Line Trace")
+@Category("MamIRC")
+@Description("Per-stage latencies of one IRC line through the ingest pipeline")
+@Enabled(false)
+@StackTrace(false)
+final class LineTraceEvent extends Event {
+	
+	@Label("Connection ID")
+	public long connectionId;
+	
+	@Label("Event Sequence")
+	@Description("Position among the connection's events, the same as the sequence number in the database")
+	public long eventSequence;
+	
+	@Label("Command")
+	@Description("The IRC command or numeric, if the line parsed")
+	public String command;
+	
+	@Label("Socket Read")
+	@Description("From the socket read returning to the line being framed")
+	@Timespan public long readTime;
+	
+	@Label("Core Queue")
+	@Timespan public long coreQueueTime;
+	
+	@Label("Handle")
+	@Timespan public long handleTime;
+	
+	@Label("Journal Append")
+	@Timespan public long journalAppendTime;
+	
+	@Label("Archiver Queue")
+	@Timespan public long archiverQueueTime;  // Only written by the archiver worker
+	
+	@Label("Commit")
+	@Description("The SQLite commit of the archiver transaction that contained this line")
+	@Timespan public long commitTime;
+	
+	transient long lastMarkNanos;  // System.nanoTime() at the end of the previous stage
+	private transient int unfinishedParts = 2;  // The Core worker, and the archiver or journal
+	
+	
+	// Returns a new begun event if the event type is enabled in any recording, otherwise null.
+	// The argument is the System.nanoTime() value when the socket read returned.
+	public static LineTraceEvent start(long connectionId, long readReturnNanos) {
+		if (!TYPE.isEnabled())
+			return null;
+		LineTraceEvent result = new LineTraceEvent();
+		result.begin();
+		result.connectionId = connectionId;
+		result.lastMarkNanos = System.nanoTime();
+		result.readTime = result.lastMarkNanos - readReturnNanos;
+		return result;
+	}
+	
+	
+	// Called by the Core worker after handling the line.
+	public synchronized void handled(String command, long handleTime) {
+		this.command = command;
+		this.handleTime = handleTime;
+		finishPart();
+	}
+	
+	
+	// Called by the Core worker after appending the line to the event journal.
+	public synchronized void journaled(long appendTime) {
+		journalAppendTime = appendTime;
+		finishPart();
+	}
+	
+	
+	// Called by the archiver worker after committing the transaction that contained the line.
+	public synchronized void archived(long commitTime) {
+		this.commitTime = commitTime;
+		finishPart();
+	}
+	
+	
+	private void finishPart() {
+		unfinishedParts--;
+		if (unfinishedParts == 0)
+			commit();
+	}
+	
+	
+	private static final EventType TYPE = EventType.getEventType(LineTraceEvent.class);
+	
+}
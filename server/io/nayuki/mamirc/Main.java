@@ -1,29 +1,85 @@
 package io.nayuki.mamirc;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
 
 
 public final class Main {
 	
 	private static final File DEFAULT_DATABASE_FILE = new File("mamirc-user-data.sqlite");
 	
+	// Split mode runs a long-lived connector, which owns the IRC connections, and a processor
+	// that can be restarted without dropping them. Without a mode, one process does both.
+	// The export and import modes move processed messages between databases; see HistoryTransfer.
+	private static final List<String> MODES = List.of("reprocess", "connector", "processor", "export", "import");
+	
 	
 	public static void main(String[] args) throws Exception {
+		String mode = "";
+		if (args.length >= 1 && MODES.contains(args[0])) {
+			mode = args[0];
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
+		if (mode.equals("export") || mode.equals("import")) {
+			transferHistory(mode, args);
+			return;
+		}
+		
 		File dbFile;
 		if (args.length == 0)
 			dbFile = DEFAULT_DATABASE_FILE;
 		else if (args.length == 1)
 			dbFile = new File(args[0]);
 		else {
-			System.err.println("Usage: java io/nayuki/mamirc/Main [Database.sqlite]");
+			System.err.println("Usage: java io/nayuki/mamirc/Main [reprocess|connector|processor] [Database.sqlite]");
+			System.err.println("   or: java io/nayuki/mamirc/Main export Database.sqlite Output.ndjson.gz [profile=ID|window=ID]");
+			System.err.println("   or: java io/nayuki/mamirc/Main import Database.sqlite Input.ndjson.gz");
 			System.exit(1);
 			return;
 		}
 		
+		if (mode.equals("reprocess")) {
+			for (File file : new DatabaseShards(dbFile).getAllFiles())
+				new Reprocessor(dbFile, file).run();
+			return;
+		}
+		if (mode.equals("processor")) {
+			new Processor(dbFile).run();
+			return;
+		}
 		try (Database db = new Database(dbFile)) {
-			Core core = new Core(dbFile);
+			Core core = new Core(dbFile, mode.equals("connector"));
 			core.reloadProfiles();
 		}
 	}
 	
+	
+	private static void transferHistory(String mode, String[] args) throws Exception {
+		Optional<Integer> profileId = Optional.empty();
+		Optional<Long> windowId = Optional.empty();
+		if (mode.equals("export") && args.length == 3 && args[2].startsWith("profile="))
+			profileId = Optional.of(Integer.parseInt(args[2].substring(8)));
+		else if (mode.equals("export") && args.length == 3 && args[2].startsWith("window="))
+			windowId = Optional.of(Long.parseLong(args[2].substring(7)));
+		else if (args.length != 2) {
+			System.err.println("Usage: java io/nayuki/mamirc/Main export Database.sqlite Output.ndjson.gz [profile=ID|window=ID]");
+			System.err.println("   or: java io/nayuki/mamirc/Main import Database.sqlite Input.ndjson.gz");
+			System.exit(1);
+			return;
+		}
+		
+		long startTime = System.nanoTime();
+		HistoryTransfer transfer = new HistoryTransfer(new File(args[0]));
+		long count;
+		if (mode.equals("export"))
+			count = transfer.exportTo(new File(args[1]), profileId, windowId);
+		else
+			count = transfer.importFrom(new File(args[1]));
+		double seconds = (System.nanoTime() - startTime) / 1.0e9;
+		System.err.printf("%s %d messages in %.1f s (%.0f messages/s)%n",
+			mode.equals("export") ? "Exported" : "Imported", count, seconds, count / seconds);
+	}
+	
 }
@@ -0,0 +1,67 @@
+package io.nayuki.mamirc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import io.nayuki.json.Json;
+
+
+/*
+ * Compares the two representations of /messages.json on real data: building maps then
+ * serializing JSON, versus streaming MessagePack straight from the result set. Reports the
+ * time per encoding (including the query, which both paths need) and the payload sizes.
+ * Usage: java io/nayuki/mamirc/MessageEncodingBenchmark Database.sqlite WindowId [Iterations]
+ */
+public final class MessageEncodingBenchmark {
+	
+	public static void main(String[] args) throws IOException, SQLException {
+		if (args.length < 2 || args.length > 3) {
+			System.err.println("Usage: java io/nayuki/mamirc/MessageEncodingBenchmark Database.sqlite WindowId [Iterations]");
+			System.exit(1);
+			return;
+		}
+		File dbFile = new File(args[0]);
+		long windowId = Long.parseLong(args[1]);
+		int iterations = args.length == 3 ? Integer.parseInt(args[2]) : 20;
+		
+		try (Database db = new Database(dbFile)) {
+			byte[] json = null;
+			byte[] msgpack = null;
+			int messages = 0;
+			long jsonTime = Long.MAX_VALUE;
+			long msgpackTime = Long.MAX_VALUE;
+			for (int i = 0; i < iterations; i++) {  // Minimum time over all iterations, which excludes warm-up
+				long start = System.nanoTime();
+				List<Map<String,Object>> list = db.getMessages(windowId, 0, Long.MAX_VALUE);
+				json = Json.serialize(list).getBytes(StandardCharsets.UTF_8);
+				jsonTime = Math.min(System.nanoTime() - start, jsonTime);
+				messages = list.size();
+				
+				start = System.nanoTime();
+				MessagePackWriter out = new MessagePackWriter();
+				db.writeMessages(windowId, 0, Long.MAX_VALUE, out);
+				msgpack = out.toByteArray();
+				msgpackTime = Math.min(System.nanoTime() - start, msgpackTime);
+			}
+			
+			System.out.printf("Messages: %d%n", messages);
+			System.out.printf("JSON       : %8.2f ms, %10d bytes, %10d bytes gzipped%n", jsonTime / 1.0e6, json.length, gzipLength(json));
+			System.out.printf("MessagePack: %8.2f ms, %10d bytes, %10d bytes gzipped%n", msgpackTime / 1.0e6, msgpack.length, gzipLength(msgpack));
+		}
+	}
+	
+	
+	private static int gzipLength(byte[] b) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		try (GZIPOutputStream gout = new GZIPOutputStream(bout)) {
+			gout.write(b);
+		}
+		return bout.size();
+	}
+	
+}
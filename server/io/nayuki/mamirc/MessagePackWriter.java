@@ -0,0 +1,230 @@
+package io.nayuki.mamirc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+
+/*
+ * Encodes values in the MessagePack format (https://msgpack.org/) into a growable byte array.
+ * Only the subset that the web server needs is supported: nil, boolean, integer, float 64,
+ * string, binary, array, and map (with string keys). Every value uses the smallest encoding
+ * that fits. An array whose length is not known in advance (e.g. rows streamed from a
+ * ResultSet) is started with beginArray() and its length is filled in by endArray().
+ * Not thread-safe.
+ */
+final class MessagePackWriter {
+	
+	private byte[] buffer = new byte[1024];
+	private int length = 0;
+	
+	
+	public void writeNil() {
+		writeByte(0xC0);
+	}
+	
+	
+	public void writeBoolean(boolean b) {
+		writeByte(b ? 0xC3 : 0xC2);
+	}
+	
+	
+	public void writeInteger(long x) {
+		if (x >= 0) {
+			if (x < 0x80)
+				writeByte((int)x);
+			else if (x <= 0xFF) {
+				writeByte(0xCC);
+				writeByte((int)x);
+			} else if (x <= 0xFFFF) {
+				writeByte(0xCD);
+				writeBigEndian(x, 2);
+			} else if (x <= 0xFFFF_FFFFL) {
+				writeByte(0xCE);
+				writeBigEndian(x, 4);
+			} else {
+				writeByte(0xCF);
+				writeBigEndian(x, 8);
+			}
+		} else {
+			if (x >= -32)
+				writeByte((int)x);
+			else if (x >= Byte.MIN_VALUE) {
+				writeByte(0xD0);
+				writeByte((int)x);
+			} else if (x >= Short.MIN_VALUE) {
+				writeByte(0xD1);
+				writeBigEndian(x, 2);
+			} else if (x >= Integer.MIN_VALUE) {
+				writeByte(0xD2);
+				writeBigEndian(x, 4);
+			} else {
+				writeByte(0xD3);
+				writeBigEndian(x, 8);
+			}
+		}
+	}
+	
+	
+	public void writeDouble(double x) {
+		writeByte(0xCB);
+		writeBigEndian(Double.doubleToLongBits(x), 8);
+	}
+	
+	
+	public void writeString(String s) {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		if (b.length < 32)
+			writeByte(0xA0 | b.length);
+		else if (b.length <= 0xFF) {
+			writeByte(0xD9);
+			writeByte(b.length);
+		} else if (b.length <= 0xFFFF) {
+			writeByte(0xDA);
+			writeBigEndian(b.length, 2);
+		} else {
+			writeByte(0xDB);
+			writeBigEndian(b.length, 4);
+		}
+		writeBytes(b);
+	}
+	
+	
+	public void writeBinary(byte[] b) {
+		if (b.length <= 0xFF) {
+			writeByte(0xC4);
+			writeByte(b.length);
+		} else if (b.length <= 0xFFFF) {
+			writeByte(0xC5);
+			writeBigEndian(b.length, 2);
+		} else {
+			writeByte(0xC6);
+			writeBigEndian(b.length, 4);
+		}
+		writeBytes(b);
+	}
+	
+	
+	public void writeArrayHeader(int count) {
+		writeContainerHeader(count, 0x90, 0xDC);
+	}
+	
+	
+	public void writeMapHeader(int count) {
+		writeContainerHeader(count, 0x80, 0xDE);
+	}
+	
+	
+	// Writes an array header of unknown length, and returns a token to pass to endArray().
+	public int beginArray() {
+		int result = length;
+		writeByte(0xDD);
+		writeBigEndian(0, 4);
+		return result;
+	}
+	
+	
+	// Fills in the length of the array started at the given token, after its elements are written.
+	public void endArray(int token, int count) {
+		if (buffer[token] != (byte)0xDD)
+			throw new IllegalArgumentException("Invalid token");
+		for (int i = 0; i < 4; i++)
+			buffer[token + 1 + i] = (byte)(count >>> ((3 - i) * 8));
+	}
+	
+	
+	// Writes a tree of values of the kinds that Json.serialize() accepts, plus byte arrays.
+	public void writeValue(Object obj) {
+		if (obj == null)
+			writeNil();
+		else if (obj instanceof Boolean)
+			writeBoolean((Boolean)obj);
+		else if (obj instanceof Byte || obj instanceof Short || obj instanceof Integer || obj instanceof Long)
+			writeInteger(((Number)obj).longValue());
+		else if (obj instanceof Float || obj instanceof Double)
+			writeDouble(((Number)obj).doubleValue());
+		else if (obj instanceof String)
+			writeString((String)obj);
+		else if (obj instanceof byte[])
+			writeBinary((byte[])obj);
+		else if (obj instanceof List) {
+			List<?> list = (List<?>)obj;
+			writeArrayHeader(list.size());
+			for (Object o : list)
+				writeValue(o);
+		} else if (obj instanceof Map) {
+			Map<?,?> map = (Map<?,?>)obj;
+			writeMapHeader(map.size());
+			for (Map.Entry<?,?> entry : map.entrySet()) {
+				writeString((String)entry.getKey());
+				writeValue(entry.getValue());
+			}
+		} else
+			throw new IllegalArgumentException("Unsupported type: " + obj.getClass().getName());
+	}
+	
+	
+	public int size() {
+		return length;
+	}
+	
+	
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buffer, length);
+	}
+	
+	
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(buffer, 0, length);
+	}
+	
+	
+	private void writeContainerHeader(int count, int fixPrefix, int prefix16) {
+		if (count < 0)
+			throw new IllegalArgumentException("Negative count");
+		if (count < 16)
+			writeByte(fixPrefix | count);
+		else if (count <= 0xFFFF) {
+			writeByte(prefix16);
+			writeBigEndian(count, 2);
+		} else {
+			writeByte(prefix16 + 1);
+			writeBigEndian(count, 4);
+		}
+	}
+	
+	
+	private void writeBigEndian(long x, int numBytes) {
+		ensureCapacity(numBytes);
+		for (int i = numBytes - 1; i >= 0; i--, length++)
+			buffer[length] = (byte)(x >>> (i * 8));
+	}
+	
+	
+	private void writeByte(int b) {
+		ensureCapacity(1);
+		buffer[length] = (byte)b;
+		length++;
+	}
+	
+	
+	private void writeBytes(byte[] b) {
+		ensureCapacity(b.length);
+		System.arraycopy(b, 0, buffer, length, b.length);
+		length += b.length;
+	}
+	
+	
+	private void ensureCapacity(int extra) {
+		if (extra > buffer.length - length) {
+			long newLen = Math.max((long)buffer.length * 2, (long)length + extra);
+			if (newLen > Integer.MAX_VALUE - 8)
+				throw new IllegalStateException("Maximum size exceeded");
+			buffer = Arrays.copyOf(buffer, (int)newLen);
+		}
+	}
+	
+}
@@ -0,0 +1,78 @@
+package io.nayuki.mamirc;
+
+import static org.junit.Assert.assertArrayEquals;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+
+public final class MessagePackWriterTest {
+	
+	@Test public void testIntegers() {
+		long[] values = {0, 127, 128, 255, 256, 65535, 65536, 0xFFFF_FFFFL, 0x1_0000_0000L, -1, -32, -33, -128, -129, -32768, -32769, Long.MIN_VALUE};
+		String[] expected = {
+			"00", "7F", "CC80", "CCFF", "CD0100", "CDFFFF", "CE00010000", "CEFFFFFFFF", "CF0000000100000000",
+			"FF", "E0", "D0DF", "D080", "D1FF7F", "D18000", "D2FFFF7FFF", "D38000000000000000",
+		};
+		for (int i = 0; i < values.length; i++) {
+			MessagePackWriter w = new MessagePackWriter();
+			w.writeInteger(values[i]);
+			assertArrayEquals(hex(expected[i]), w.toByteArray());
+		}
+	}
+	
+	@Test public void testStrings() {
+		MessagePackWriter w = new MessagePackWriter();
+		w.writeString("");
+		w.writeString("a\u00E9");
+		assertArrayEquals(hex("A0" + "A361C3A9"), w.toByteArray());
+		
+		w = new MessagePackWriter();
+		w.writeString("x".repeat(32));
+		assertArrayEquals(hex("D920" + "78".repeat(32)), w.toByteArray());
+		
+		w = new MessagePackWriter();
+		w.writeString("x".repeat(256));
+		assertArrayEquals(hex("DA0100" + "78".repeat(256)), w.toByteArray());
+	}
+	
+	@Test public void testValueTree() {
+		Map<String,Object> map = new LinkedHashMap<>();
+		map.put("a", Arrays.asList(true, false, null));
+		map.put("b", 1.5);
+		MessagePackWriter w = new MessagePackWriter();
+		w.writeValue(map);
+		assertArrayEquals(hex("82" + "A161" + "93C3C2C0" + "A162" + "CB3FF8000000000000"), w.toByteArray());
+	}
+	
+	@Test public void testDeferredArrayLength() {
+		MessagePackWriter w = new MessagePackWriter();
+		w.writeArrayHeader(2);
+		int token = w.beginArray();
+		List<Integer> elems = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			w.writeInteger(i);
+			elems.add(i);
+		}
+		w.endArray(token, elems.size());
+		w.writeNil();
+		
+		StringBuilder sb = new StringBuilder("92" + "DD00000014");
+		for (int i = 0; i < 20; i++)
+			sb.append(String.format("%02X", i));
+		sb.append("C0");
+		assertArrayEquals(hex(sb.toString()), w.toByteArray());
+	}
+	
+	
+	private static byte[] hex(String s) {
+		byte[] result = new byte[s.length() / 2];
+		for (int i = 0; i < result.length; i++)
+			result[i] = (byte)Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+		return result;
+	}
+	
+}
@@ -0,0 +1,269 @@
+package io.nayuki.mamirc;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+
+/*
+ * A registry of counters, gauges and histograms, exported in the Prometheus text format
+ * (version 0.0.4). Metrics are created once at startup and then recorded from any thread.
+ * Recording never allocates or locks: counters and histogram buckets are LongAdders, and
+ * histograms have fixed bucket bounds. Values are recorded in integer units (e.g. nanoseconds)
+ * and scaled on export (e.g. to seconds). A labeled family looks up its child by label value,
+ * which only allocates the first time a value is seen; the number of distinct values is capped,
+ * and any further values are recorded under the label value "other".
+ */
+final class Metrics {
+	
+	private List<Family> families = new CopyOnWriteArrayList<>();
+	
+	
+	public Counter newCounter(String name, String help) {
+		Counter result = new Counter();
+		register(new Family(name, help, "counter") {
+			void writeSamples(StringBuilder sb) {
+				result.writeSamples(sb, name, "");
+			}
+		});
+		return result;
+	}
+	
+	
+	public Labeled<Counter> newLabeledCounter(String name, String help, String labelName, int maxLabels) {
+		Labeled<Counter> result = new Labeled<>(labelName, maxLabels, Counter::new);
+		register(new Family(name, help, "counter") {
+			void writeSamples(StringBuilder sb) {
+				result.children.forEach((value, child) -> child.writeSamples(sb, name, result.formatLabel(value)));
+			}
+		});
+		return result;
+	}
+	
+	
+	// For a monotonic total that is already maintained elsewhere. The supplier is called on every export, from a web server thread.
+	public void newCounter(String name, String help, LongSupplier supplier) {
+		Objects.requireNonNull(supplier);
+		register(new Family(name, help, "counter") {
+			void writeSamples(StringBuilder sb) {
+				sb.append(name).append(' ').append(supplier.getAsLong()).append('\n');
+			}
+		});
+	}
+	
+	
+	// The supplier is called on every export, from a web server thread.
+	public void newGauge(String name, String help, LongSupplier supplier) {
+		Objects.requireNonNull(supplier);
+		register(new Family(name, help, "gauge") {
+			void writeSamples(StringBuilder sb) {
+				sb.append(name).append(' ').append(supplier.getAsLong()).append('\n');
+			}
+		});
+	}
+	
+	
+	public Histogram newHistogram(String name, String help, long[] bounds, double scale) {
+		Histogram result = new Histogram(bounds, scale);
+		register(new Family(name, help, "histogram") {
+			void writeSamples(StringBuilder sb) {
+				result.writeSamples(sb, name, "");
+			}
+		});
+		return result;
+	}
+	
+	
+	public Labeled<Histogram> newLabeledHistogram(String name, String help, String labelName, int maxLabels, long[] bounds, double scale) {
+		Labeled<Histogram> result = new Labeled<>(labelName, maxLabels, () -> new Histogram(bounds, scale));
+		register(new Family(name, help, "histogram") {
+			void writeSamples(StringBuilder sb) {
+				result.children.forEach((value, child) -> child.writeSamples(sb, name, result.formatLabel(value)));
+			}
+		});
+		return result;
+	}
+	
+	
+	private void register(Family fam) {
+		for (Family f : families) {
+			if (f.name.equals(fam.name))
+				throw new IllegalArgumentException("Duplicate metric name: " + fam.name);
+		}
+		families.add(fam);
+	}
+	
+	
+	public String export() {
+		StringBuilder sb = new StringBuilder();
+		for (Family fam : families) {
+			sb.append("# HELP ").append(fam.name).append(' ').append(fam.help).append('\n');
+			sb.append("# TYPE ").append(fam.name).append(' ').append(fam.type).append('\n');
+			fam.writeSamples(sb);
+		}
+		return sb.toString();
+	}
+	
+	
+	// Bucket bounds in nanoseconds, for use with a scale of 1e-9.
+	public static final long[] LATENCY_BUCKETS_NS = {
+		10_000L, 25_000L, 50_000L, 100_000L, 250_000L, 500_000L,
+		1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L,
+		100_000_000L, 250_000_000L, 500_000_000L, 1_000_000_000L, 2_500_000_000L, 10_000_000_000L,
+	};
+	
+	public static final long[] COUNT_BUCKETS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 100000};
+	
+	public static final double NANOSECONDS_TO_SECONDS = 1e-9;
+	
+	
+	
+	private static abstract class Family {
+		
+		public final String name;
+		public final String help;
+		public final String type;
+		
+		
+		public Family(String name, String help, String type) {
+			if (!name.matches("[a-zA-Z_:][a-zA-Z0-9_:]*"))
+				throw new IllegalArgumentException("Invalid metric name");
+			this.name = name;
+			this.help = help.replace("\\", "\\\\").replace("\n", "\\n");
+			this.type = type;
+		}
+		
+		
+		abstract void writeSamples(StringBuilder sb);
+		
+	}
+	
+	
+	
+	public static final class Counter {
+		
+		private LongAdder value = new LongAdder();
+		
+		
+		public void increment() {
+			value.increment();
+		}
+		
+		
+		public void add(long delta) {
+			value.add(delta);
+		}
+		
+		
+		void writeSamples(StringBuilder sb, String name, String labels) {
+			sb.append(name).append(labels).append(' ').append(value.sum()).append('\n');
+		}
+		
+	}
+	
+	
+	
+	public static final class Histogram {
+		
+		private final long[] bounds;  // Strictly increasing upper bounds, inclusive
+		private final double scale;
+		private final LongAdder[] counts;  // Not cumulative; the last bucket is +Inf
+		private LongAdder sum = new LongAdder();
+		
+		
+		Histogram(long[] bounds, double scale) {
+			for (int i = 1; i < bounds.length; i++) {
+				if (bounds[i - 1] >= bounds[i])
+					throw new IllegalArgumentException("Bounds not increasing");
+			}
+			this.bounds = bounds.clone();
+			this.scale = scale;
+			counts = new LongAdder[bounds.length + 1];
+			for (int i = 0; i < counts.length; i++)
+				counts[i] = new LongAdder();
+		}
+		
+		
+		public void observe(long value) {
+			int i = 0;
+			while (i < bounds.length && value > bounds[i])
+				i++;
+			counts[i].increment();
+			sum.add(value);
+		}
+		
+		
+		// Observes the time elapsed since the given System.nanoTime() value.
+		public void observeSince(long startNanos) {
+			observe(System.nanoTime() - startNanos);
+		}
+		
+		
+		void writeSamples(StringBuilder sb, String name, String labels) {
+			String prefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+			long cumulative = 0;
+			for (int i = 0; i < counts.length; i++) {
+				cumulative += counts[i].sum();
+				sb.append(name).append("_bucket").append(prefix).append("le=\"")
+					.append(i < bounds.length ? Double.toString(bounds[i] * scale) : "+Inf")
+					.append("\"} ").append(cumulative).append('\n');
+			}
+			sb.append(name).append("_sum").append(labels).append(' ').append(sum.sum() * scale).append('\n');
+			sb.append(name).append("_count").append(labels).append(' ').append(cumulative).append('\n');
+		}
+		
+	}
+	
+	
+	
+	public static final class Labeled<M> {
+		
+		private final String labelName;
+		private final int maxLabels;
+		private final Supplier<M> factory;
+		private Map<String,M> children = new ConcurrentHashMap<>();
+		
+		
+		Labeled(String labelName, int maxLabels, Supplier<M> factory) {
+			if (!labelName.matches("[a-zA-Z_][a-zA-Z0-9_]*"))
+				throw new IllegalArgumentException("Invalid label name");
+			if (maxLabels < 1)
+				throw new IllegalArgumentException("Non-positive label limit");
+			this.labelName = labelName;
+			this.maxLabels = maxLabels;
+			this.factory = factory;
+		}
+		
+		
+		// Callers on a hot path should keep the returned child rather than looking it up every time.
+		public M get(String labelValue) {
+			M result = children.get(labelValue);
+			if (result != null)
+				return result;
+			if (children.size() >= maxLabels)
+				labelValue = OVERFLOW_LABEL;
+			return children.computeIfAbsent(labelValue, k -> factory.get());
+		}
+		
+		
+		// Stops exporting the given label value, e.g. once the connection it represents is gone.
+		public void remove(String labelValue) {
+			children.remove(labelValue);
+		}
+		
+		
+		String formatLabel(String value) {
+			return "{" + labelName + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"}";
+		}
+		
+		
+		private static final String OVERFLOW_LABEL = "other";
+		
+	}
+	
+}
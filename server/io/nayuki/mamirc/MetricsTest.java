@@ -0,0 +1,66 @@
+package io.nayuki.mamirc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+
+public final class MetricsTest {
+	
+	@Test public void testCounterAndGauge() {
+		Metrics m = new Metrics();
+		Metrics.Counter c = m.newCounter("a_total", "Some count");
+		c.increment();
+		c.add(4);
+		m.newGauge("b", "Some level", () -> -3);
+		assertEquals(String.join("\n",
+			"# HELP a_total Some count",
+			"# TYPE a_total counter",
+			"a_total 5",
+			"# HELP b Some level",
+			"# TYPE b gauge",
+			"b -3",
+			""), m.export());
+	}
+	
+	@Test public void testHistogram() {
+		Metrics m = new Metrics();
+		Metrics.Histogram h = m.newHistogram("h", "Sizes", new long[]{1, 10}, 1);
+		h.observe(0);
+		h.observe(1);
+		h.observe(5);
+		h.observe(100);
+		assertEquals(String.join("\n",
+			"# HELP h Sizes",
+			"# TYPE h histogram",
+			"h_bucket{le=\"1.0\"} 2",
+			"h_bucket{le=\"10.0\"} 3",
+			"h_bucket{le=\"+Inf\"} 4",
+			"h_sum 106.0",
+			"h_count 4",
+			""), m.export());
+	}
+	
+	@Test public void testLabelCap() {
+		Metrics m = new Metrics();
+		Metrics.Labeled<Metrics.Counter> lc = m.newLabeledCounter("x_total", "X", "kind", 2);
+		lc.get("a").increment();
+		lc.get("b\"").increment();
+		lc.get("c").increment();
+		lc.get("d").increment();
+		lc.get("a").increment();
+		String s = m.export();
+		assertTrue(s.contains("x_total{kind=\"a\"} 2\n"));
+		assertTrue(s.contains("x_total{kind=\"b\\\"\"} 1\n"));
+		assertTrue(s.contains("x_total{kind=\"other\"} 2\n"));
+		assertTrue(!s.contains("kind=\"c\""));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testDuplicateName() {
+		Metrics m = new Metrics();
+		m.newCounter("a", "");
+		m.newGauge("a", "", () -> 0);
+	}
+	
+}
@@ -0,0 +1,140 @@
+package io.nayuki.mamirc;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+
+
+/*
+ * Decides when each outbound line of one connection may be written. Lines are sorted into
+ * three priority lanes by their command: keepalive and registration (PONG, PING, NICK, ...),
+ * then interactive messages (PRIVMSG, NOTICE), then everything else as bulk (JOIN, WHO, ...).
+ * Within a lane the order is FIFO. Every line costs one token from a bucket that holds up to
+ * "burst" tokens and refills at a fixed rate, so a long run of bulk commands is paced at a
+ * rate the server tolerates while a PONG never waits behind it for more than one token.
+ * Thread-safe.
+ */
+final class OutboundScheduler {
+	
+	private final double burst;  // Maximum tokens
+	private final double refillRate;  // Tokens per nanosecond
+	
+	// All the fields below are guarded by this object's lock.
+	private double tokens;
+	private long lastRefillTime;  // In System.nanoTime() units
+	private List<Queue<byte[]>> lanes = new ArrayList<>();  // Highest priority first
+	private boolean shutdown = false;
+	
+	
+	public OutboundScheduler(int burst, double linesPerSecond) {
+		if (burst < 1)
+			throw new IllegalArgumentException("Burst must be at least 1");
+		if (!(linesPerSecond > 0) || Double.isInfinite(linesPerSecond))
+			throw new IllegalArgumentException("Invalid rate");
+		this.burst = burst;
+		refillRate = linesPerSecond / 1e9;
+		tokens = burst;
+		lastRefillTime = System.nanoTime();
+		for (int i = 0; i < NUM_LANES; i++)
+			lanes.add(new ArrayDeque<>());
+	}
+	
+	
+	public synchronized void put(byte[] line) {
+		lanes.get(laneOf(line)).add(Objects.requireNonNull(line));
+		notifyAll();
+	}
+	
+	
+	// Blocks until a line may be written and returns it, or returns null after shutdown().
+	public synchronized byte[] take() throws InterruptedException {
+		while (true) {
+			if (shutdown)
+				return null;
+			long now = System.nanoTime();
+			byte[] result = poll(now);
+			if (result != null)
+				return result;
+			if (isEmpty())
+				wait();
+			else {  // Wait for the next token
+				long waitNanos = (long)Math.ceil((1 - tokens) / refillRate);
+				wait(Math.max(waitNanos / 1_000_000, 1));
+			}
+		}
+	}
+	
+	
+	// Returns a line if one may be written right now, otherwise null. Never blocks.
+	public synchronized byte[] tryTake() {
+		if (shutdown)
+			return null;
+		return poll(System.nanoTime());
+	}
+	
+	
+	// Discards all queued lines and makes take() return null.
+	public synchronized void shutdown() {
+		shutdown = true;
+		for (Queue<byte[]> lane : lanes)
+			lane.clear();
+		notifyAll();
+	}
+	
+	
+	// Returns the highest priority line if a token is available at the given time, otherwise null.
+	// Times must be non-decreasing. Package-private so that tests can supply the clock.
+	synchronized byte[] poll(long now) {
+		tokens = Math.min(tokens + (now - lastRefillTime) * refillRate, burst);
+		lastRefillTime = now;
+		if (tokens < 1)
+			return null;
+		for (Queue<byte[]> lane : lanes) {
+			byte[] result = lane.poll();
+			if (result != null) {
+				tokens -= 1;
+				return result;
+			}
+		}
+		return null;
+	}
+	
+	
+	private boolean isEmpty() {
+		for (Queue<byte[]> lane : lanes) {
+			if (!lane.isEmpty())
+				return false;
+		}
+		return true;
+	}
+	
+	
+	// The line is a raw IRC message without a prefix, so its command is the first word.
+	static int laneOf(byte[] line) {
+		int end = 0;
+		while (end < line.length && line[end] != ' ')
+			end++;
+		switch (new String(line, 0, end, StandardCharsets.US_ASCII).toUpperCase()) {
+			case "PONG":
+			case "PING":
+			case "PASS":
+			case "CAP":
+			case "NICK":
+			case "USER":
+			case "QUIT":
+				return 0;
+			case "PRIVMSG":
+			case "NOTICE":
+				return 1;
+			default:
+				return 2;
+		}
+	}
+	
+	
+	private static final int NUM_LANES = 3;
+	
+}
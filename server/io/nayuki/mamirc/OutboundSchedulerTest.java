@@ -0,0 +1,67 @@
+package io.nayuki.mamirc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+
+public final class OutboundSchedulerTest {
+	
+	@Test public void testLanes() {
+		assertEquals(0, OutboundScheduler.laneOf(bytes("PONG :irc.example.com")));
+		assertEquals(0, OutboundScheduler.laneOf(bytes("NICK alice")));
+		assertEquals(1, OutboundScheduler.laneOf(bytes("PRIVMSG #chan :hi")));
+		assertEquals(2, OutboundScheduler.laneOf(bytes("JOIN #chan")));
+		assertEquals(2, OutboundScheduler.laneOf(bytes("")));
+	}
+	
+	@Test public void testPriorityOrder() {
+		OutboundScheduler sched = new OutboundScheduler(10, 1.0);
+		sched.put(bytes("JOIN #a"));
+		sched.put(bytes("PRIVMSG #a :x"));
+		sched.put(bytes("JOIN #b"));
+		sched.put(bytes("PONG :y"));
+		long t = System.nanoTime();
+		assertEquals("PONG :y", string(sched.poll(t)));
+		assertEquals("PRIVMSG #a :x", string(sched.poll(t)));
+		assertEquals("JOIN #a", string(sched.poll(t)));
+		assertEquals("JOIN #b", string(sched.poll(t)));
+		assertNull(sched.poll(t));
+	}
+	
+	@Test public void testTokenBucket() {
+		OutboundScheduler sched = new OutboundScheduler(3, 2.0);  // Refills one token per 0.5 s
+		for (int i = 0; i < 10; i++)
+			sched.put(bytes("JOIN #c" + i));
+		long t = System.nanoTime();
+		for (int i = 0; i < 3; i++)
+			assertEquals("JOIN #c" + i, string(sched.poll(t)));
+		assertNull(sched.poll(t));
+		assertNull(sched.poll(t + 400_000_000L));
+		assertEquals("JOIN #c3", string(sched.poll(t + 500_000_000L)));
+		assertNull(sched.poll(t + 600_000_000L));
+		// A long idle period refills only up to the burst size
+		for (int i = 4; i < 7; i++)
+			assertEquals("JOIN #c" + i, string(sched.poll(t + 100_000_000_000L)));
+		assertNull(sched.poll(t + 100_000_000_000L));
+	}
+	
+	@Test public void testShutdown() throws InterruptedException {
+		OutboundScheduler sched = new OutboundScheduler(1, 1.0);
+		sched.put(bytes("JOIN #a"));
+		sched.shutdown();
+		assertNull(sched.take());
+	}
+	
+	
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+	
+	
+	private static String string(byte[] b) {
+		return new String(b, StandardCharsets.UTF_8);
+	}
+	
+}
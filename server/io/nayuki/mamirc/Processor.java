@@ -0,0 +1,242 @@
+package io.nayuki.mamirc;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/*
+ * The processing half of split mode. It attaches to a connector process (see ConnectorServer),
+ * turns the raw events of every connection into processed messages, and serves the web UI.
+ * The connector keeps the IRC connections alive across restarts of this process, so only the
+ * in-memory state of each connection must be rebuilt on attach, by restoring its latest checkpoint
+ * (see ProcessorState) and replaying the stored events after it without emitting messages.
+ * Messages are emitted only for events at or past the connection's persisted progress,
+ * which is written in posting order along with the messages themselves.
+ * (If this process dies between the two, at most the messages of one event are emitted twice,
+ * or those of one netsplit burst that a gap ended are lost.)
+ */
+final class Processor {
+	
+	private final DatabaseShards shards;
+	private final File socketFile;
+	
+	private Metrics metrics = new Metrics();
+	private final Metrics.Counter attaches;
+	private final Metrics.Counter eventsReplayed;
+	private final Archivers archivers;
+	private final WebServer server;
+	private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+	private ScheduledExecutorService retentionScheduler = Executors.newSingleThreadScheduledExecutor();
+	
+	// Live connections. Guarded by this object's lock, which the run() thread holds while processing an event
+	private Map<Long,ProcessorState> states = new HashMap<>();
+	
+	
+	public Processor(File dbFile) throws IOException, SQLException {
+		long archiverMemLimit;
+		long retentionInterval;
+		try (Database db = new Database(dbFile)) {
+			socketFile = ConnectorServer.getSocketFile(db, dbFile);
+			archiverMemLimit = db.getConfigurationValue("Archiver queue memory limit")
+				.map(Long::parseLong).orElse(Core.DEFAULT_ARCHIVER_MEMORY_LIMIT);
+			retentionInterval = db.getConfigurationValue("Retention interval ms")
+				.map(Long::parseLong).orElse(Core.DEFAULT_RETENTION_INTERVAL);
+		}
+		attaches = metrics.newCounter("mamirc_processor_attaches_total", "Times this processor attached to the connector");
+		eventsReplayed = metrics.newCounter("mamirc_processor_replayed_events_total", "Stored events replayed from the database to catch up");
+		shards = new DatabaseShards(dbFile);
+		archivers = new Archivers(shards, Thread.currentThread(), archiverMemLimit, metrics);
+		try {
+			server = new WebServer(shards, archivers, metrics);
+		} catch (IOException|SQLException|RuntimeException e) {
+			archivers.postTermination();
+			throw e;
+		}
+		scheduler.scheduleWithFixedDelay(this::flushIdleBursts, Core.BURST_FLUSH_INTERVAL, Core.BURST_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+		// The connector deletes the raw events
+		retentionScheduler.scheduleWithFixedDelay(new RetentionTask(shards, Optional.empty(), Optional.of(archivers), metrics),
+			Core.RETENTION_INITIAL_DELAY, retentionInterval, TimeUnit.MILLISECONDS);
+	}
+	
+	
+	// Stays attached to the connector, attaching again whenever the link is lost.
+	// Returns only when interrupted, which the archiver does if it fails.
+	public void run() {
+		try {
+			while (true) {
+				try {
+					attach();
+				} catch (IOException|SQLException e) {
+					if (Thread.currentThread().isInterrupted())
+						break;
+					e.printStackTrace();
+				}
+				Thread.sleep(REATTACH_DELAY_MS);
+			}
+		} catch (InterruptedException e) {
+		} finally {
+			scheduler.shutdownNow();
+			retentionScheduler.shutdownNow();
+			archivers.postTermination();
+			server.terminate();
+		}
+	}
+	
+	
+	private void attach() throws IOException, SQLException, InterruptedException {
+		try (SocketChannel ch = SocketChannel.open(UnixDomainSocketAddress.of(socketFile.toPath()))) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch)));
+			if (in.readByte() != 'S')
+				throw new IOException("Expected snapshot");
+			Map<Long,Integer> liveProfiles = new HashMap<>();
+			Map<Long,Long> liveEnds = new HashMap<>();
+			for (int i = in.readInt(); i > 0; i--) {
+				long conId = in.readLong();
+				liveProfiles.put(conId, in.readInt());
+				liveEnds.put(conId, in.readLong());
+			}
+			attaches.increment();
+			catchUp(liveProfiles, liveEnds);
+			
+			while (true) {
+				if (in.readByte() != 'E')
+					throw new IOException("Expected event");
+				long conId = in.readLong();
+				int profId = in.readInt();
+				long sequence = in.readLong();
+				long timestamp = in.readLong();
+				byte[] data = new byte[in.readInt()];
+				in.readFully(data);
+				
+				synchronized(this) {
+					ProcessorState state = states.get(conId);
+					if (state == null) {  // A connection opened after the snapshot, so it starts here
+						state = newState(conId, profId, 0);
+						states.put(conId, state);
+					}
+					if (sequence != state.nextSequence)
+						throw new IOException("Event out of sequence");
+					ConnectionEvent ev = ConnectionEvent.fromBytes(timestamp, data);
+					state.process(ev);
+					if (ev instanceof ConnectionEvent.Closed)
+						states.remove(conId);
+				}
+			}
+		} finally {
+			synchronized(this) {
+				states.clear();  // Rebuilt from scratch on the next attach
+			}
+		}
+	}
+	
+	
+	// Replays from the database everything that precedes the stream: all the events before the
+	// snapshot for each live connection, and the unprocessed tail of each connection that ended
+	// while no processor was attached. Every connection that a connector opens gets a progress row
+	// of zero in the same transaction (see Database.addConnection()), so the progress rows cover even
+	// the connections that no processor saw live. The connector may not have written the newest events
+	// of a live connection yet, so this waits for them.
+	private void catchUp(Map<Long,Integer> liveProfiles, Map<Long,Long> liveEnds) throws SQLException, IOException, InterruptedException {
+		// With shards, a connection's events are in its profile's shard if it is mirrored there
+		// (i.e. it began after sharding was enabled), otherwise in the main file. Its progress
+		// is written next to its messages, so a row in a shard supersedes one in the main file.
+		Map<Long,Long> progress = new HashMap<>();
+		Map<Long,Integer> profiles = new HashMap<>();
+		Map<Long,File> eventFiles = new HashMap<>();
+		for (File file : shards.getAllFiles()) {
+			try (Database db = new Database(file)) {
+				db.getProcessorProgress().forEach((conId, seq) -> progress.merge(conId, seq, Math::max));
+				db.getConnectionProfiles().forEach((conId, profId) -> {
+					profiles.put(conId, profId);
+					eventFiles.put(conId, file);  // The main file comes first
+				});
+			}
+		}
+		TreeSet<Long> conIds = new TreeSet<>(progress.keySet());
+		conIds.addAll(liveEnds.keySet());
+		for (long conId : conIds) {
+			try (Database db = new Database(eventFiles.getOrDefault(conId, shards.getMainFile()))) {
+				long watermark = progress.getOrDefault(conId, 0L);
+				long end;
+				if (liveEnds.containsKey(conId)) {
+					end = liveEnds.get(conId);
+					while (db.getNextConnectionEventSequence(conId) < end)
+						Thread.sleep(CATCH_UP_POLL_MS);
+				} else {
+					end = db.getNextConnectionEventSequence(conId);
+					if (end <= watermark)
+						continue;  // Ended, and fully processed
+				}
+				
+				ProcessorState state = resumeState(conId, liveProfiles.getOrDefault(conId, profiles.get(conId)), watermark, end);
+				db.forEachConnectionEvent(conId, state.nextSequence, end, ev -> {
+					state.process(ev);
+					eventsReplayed.increment();
+				});
+				if (liveEnds.containsKey(conId)) {
+					synchronized(this) {
+						states.put(conId, state);
+					}
+				}
+			}
+		}
+	}
+	
+	
+	// Returns a state for the given connection that continues from its latest usable checkpoint, if any.
+	private ProcessorState resumeState(long conId, int profId, long watermark, long end) throws IOException, SQLException {
+		ProcessorState result = newState(conId, profId, watermark);
+		Optional<File> file = shards.findProfileFile(profId);  // Where its messages go
+		if (file.isEmpty())
+			return result;
+		Optional<Map.Entry<Long,byte[]>> checkpoint;
+		try (Database db = new Database(file.get())) {
+			checkpoint = db.getProcessorCheckpoint(conId);
+		}
+		// A checkpoint beyond the stored events covers events that the connector never wrote before it died
+		if (checkpoint.isEmpty() || checkpoint.get().getKey() > end)
+			return result;
+		try {
+			result.restoreCheckpoint(checkpoint.get().getKey(), checkpoint.get().getValue());
+			return result;
+		} catch (IOException e) {
+			e.printStackTrace();  // E.g. an older format, so replay everything instead
+			return newState(conId, profId, watermark);
+		}
+	}
+	
+	
+	private ProcessorState newState(long conId, int profId, long watermark) throws IOException, SQLException {
+		return new ProcessorState(conId, profId, shards.getMainFile(), archivers.getMessageArchiver(profId), watermark);
+	}
+	
+	
+	// Runs on the scheduler thread. Ends netsplit bursts on connections that have gone quiet.
+	private synchronized void flushIdleBursts() {
+		long now = System.currentTimeMillis();
+		try {
+			for (ProcessorState state : states.values())
+				state.flushIdle(now);
+		} catch (RuntimeException e) {
+			e.printStackTrace();  // Keep the schedule running
+		}
+	}
+	
+	
+	private static final long REATTACH_DELAY_MS = 1_000;
+	private static final long CATCH_UP_POLL_MS = 100;
+	
+}
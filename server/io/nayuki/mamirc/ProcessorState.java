@@ -0,0 +1,114 @@
+package io.nayuki.mamirc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Optional;
+
+
+/*
+ * The state of one connection in a separate processor (see Processor). It emits messages only from
+ * the watermark on, and sends nothing, because the connector's own connection state already speaks
+ * the protocol. Every CHECKPOINT_INTERVAL events it also posts a checkpoint of itself, so that a
+ * restarted processor only replays the events after the latest one. The messages, the progress and
+ * the checkpoints all go through the same archiver, so they are written in the order they happen.
+ */
+class ProcessorState extends ConnectionState {
+	
+	public long nextSequence = 0;
+	private final long watermark;  // Events before this already have their messages in the database
+	private long checkpointSequence = 0;  // Of the latest checkpoint posted or restored, or 0 if none
+	private boolean postedMessages;
+	private boolean flushingIdle = false;
+	private final Archiver archiver;
+	
+	
+	public ProcessorState(long connectionId, int profileId, File dbFile, Archiver archiver, long watermark) {
+		super(connectionId, profileId, dbFile);
+		this.archiver = archiver;
+		this.watermark = watermark;
+	}
+	
+	
+	// Continues from the given checkpoint instead of from the beginning, so the next event to process
+	// is the one at its sequence number. Must be called before any event is processed.
+	public void restoreCheckpoint(long nextSequence, byte[] checkpoint) throws IOException {
+		if (this.nextSequence != 0)
+			throw new IllegalStateException("Events already processed");
+		restoreCheckpoint(checkpoint);
+		this.nextSequence = nextSequence;
+		checkpointSequence = nextSequence;
+	}
+	
+	
+	public void process(ConnectionEvent ev) {
+		postedMessages = false;
+		endIdleBurst(ev.timestampUnixMs);
+		try {
+			handle(ev);
+		} catch (IrcSyntaxException|IrcStateException e) {
+			if (nextSequence >= watermark)  // Otherwise it was reported when first processed
+				e.printStackTrace();
+		}
+		nextSequence++;
+		// Events without messages can be replayed again harmlessly, so they need no progress write,
+		// except the last one, so that a finished connection is not replayed on every attach
+		if (postedMessages || ev instanceof ConnectionEvent.Closed && nextSequence > watermark)
+			emitProgress(nextSequence);
+		if (ev instanceof ConnectionEvent.Closed) {
+			if (checkpointSequence > 0)
+				emitCheckpoint(nextSequence, Optional.empty());  // Never replayed again
+		} else if (nextSequence - checkpointSequence >= CHECKPOINT_INTERVAL) {
+			emitCheckpoint(nextSequence, Optional.of(saveCheckpoint()));
+			checkpointSequence = nextSequence;
+		}
+	}
+	
+	
+	// Called by the timer between events. The burst's messages are recorded as processed right away,
+	// so a later replay of the same events ends the burst before the next event without emitting them again.
+	public void flushIdle(long nowUnixMs) {
+		postedMessages = false;
+		endIdleBurst(nowUnixMs);
+		if (postedMessages)
+			emitProgress(nextSequence);
+	}
+	
+	
+	// A burst ended by a gap consists of the events before nextSequence only, so its messages were
+	// already emitted if the progress has reached nextSequence (e.g. through flushIdle()).
+	private void endIdleBurst(long nowUnixMs) {
+		flushingIdle = true;
+		try {
+			flushIdleBurst(nowUnixMs);
+		} finally {
+			flushingIdle = false;
+		}
+	}
+	
+	
+	@Override protected void postMessage(int profileId, String windowDisplayName, long timestampUnixMs, String data) {
+		if (flushingIdle ? nextSequence > watermark : nextSequence >= watermark) {
+			emitMessage(profileId, windowDisplayName, timestampUnixMs, data);
+			postedMessages = true;
+		}
+	}
+	
+	
+	protected void emitMessage(int profileId, String windowDisplayName, long timestampUnixMs, String data) {
+		archiver.postMessage(profileId, windowDisplayName, timestampUnixMs, data);
+	}
+	
+	
+	protected void emitProgress(long nextSequence) {
+		archiver.postProgress(connectionId, nextSequence);
+	}
+	
+	
+	protected void emitCheckpoint(long nextSequence, Optional<byte[]> state) {
+		archiver.postCheckpoint(connectionId, nextSequence, state);
+	}
+	
+	
+	static final int CHECKPOINT_INTERVAL = 10_000;  // In events; also used by ProcessorStateTest
+	
+}
@@ -0,0 +1,164 @@
+package io.nayuki.mamirc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import org.junit.Test;
+
+
+public final class ProcessorStateTest {
+	
+	@Test public void testWatermarkSuppressesReplayedMessages() {
+		List<ConnectionEvent> events = joinedWithUsers(1000, "alice");
+		int start = events.size();
+		for (int i = 0; i < 5; i++)
+			events.add(received(2000 + i, ":alice!a@x PRIVMSG #chan :" + i));
+		Recorder rec = new Recorder(start + 3);
+		events.forEach(rec::process);
+		assertEquals(List.of(
+			"#chan@2003 R_PRIVMSG|alice!a@x|3",
+			"#chan@2004 R_PRIVMSG|alice!a@x|4"), rec.messages);
+		assertEquals(List.of(start + 4L, start + 5L), rec.progress);
+	}
+	
+	@Test public void testIdleFlushNotEmittedTwice() {
+		List<ConnectionEvent> events = joinedWithUsers(1000, "alice", "bob");
+		events.add(received(1100, ":alice!a@x QUIT :hub.example.net leaf.example.net"));
+		events.add(received(1200, ":bob!b@x QUIT :hub.example.net leaf.example.net"));
+		Recorder first = new Recorder(0);
+		events.forEach(first::process);
+		first.messages.clear();
+		first.flushIdle(9000);
+		assertEquals(List.of("#chan@1100 R_NETSPLIT|hub.example.net leaf.example.net|alice!a@x|bob!b@x"), first.messages);
+		long watermark = first.progress.get(first.progress.size() - 1);
+		assertEquals(events.size(), watermark);
+		
+		// Attached again after the flush, before the next event
+		Recorder second = new Recorder(watermark);
+		events.forEach(second::process);
+		second.process(received(20000, ":carol!c@x JOIN #chan"));
+		assertEquals(List.of("#chan@20000 R_JOIN|carol!c@x|other"), second.messages);
+	}
+	
+	@Test public void testCheckpointThenStreamMatchesUninterruptedRun() throws IOException {
+		List<ConnectionEvent> events = joinedWithUsers(1000, "alice", "bob", "carol");
+		events.add(received(1100, ":alice!a@x QUIT :hub.example.net leaf.example.net"));
+		int checkpointAt = events.size();  // With a netsplit burst pending
+		events.add(received(1200, ":bob!b@x QUIT :hub.example.net leaf.example.net"));
+		events.add(received(1300, ":carol!c@x PRIVMSG #chan :hi"));
+		events.add(received(1400, "PING :x"));
+		int snapshotEnd = events.size();  // The connector's next sequence when attached again
+		events.add(received(60000, ":alice!a@x JOIN #chan"));
+		events.add(received(60100, ":bob!b@x JOIN #chan"));
+		events.add(received(60200, ":carol!c@x PRIVMSG #chan :welcome back"));
+		
+		Recorder uninterrupted = new Recorder(0);
+		events.forEach(uninterrupted::process);
+		
+		// The first processor stops after the snapshot end, with the checkpoint and its progress written
+		Recorder first = new Recorder(0);
+		byte[] checkpoint = null;
+		for (int i = 0; i < snapshotEnd; i++) {
+			if (i == checkpointAt)
+				checkpoint = first.saveCheckpoint();
+			first.process(events.get(i));
+		}
+		long watermark = first.progress.get(first.progress.size() - 1);
+		assertTrue(checkpointAt < watermark && watermark < snapshotEnd);
+		
+		// The second one replays the stored events after the checkpoint, then takes over the stream
+		Recorder second = new Recorder(watermark);
+		second.restoreCheckpoint(checkpointAt, checkpoint);
+		for (int i = checkpointAt; i < snapshotEnd; i++)
+			second.process(events.get(i));
+		assertEquals(List.of(), second.messages);
+		assertEquals(snapshotEnd, second.nextSequence);
+		for (int i = snapshotEnd; i < events.size(); i++)
+			second.process(events.get(i));
+		
+		List<String> combined = new ArrayList<>(first.messages);
+		combined.addAll(second.messages);
+		assertEquals(uninterrupted.messages, combined);
+	}
+	
+	@Test public void testCheckpointPostedPeriodicallyAndDeletedOnClose() throws IOException {
+		List<ConnectionEvent> events = joinedWithUsers(1000, "alice");
+		while (events.size() < ProcessorState.CHECKPOINT_INTERVAL)
+			events.add(received(2000, "PING :x"));
+		Recorder rec = new Recorder(0);
+		events.forEach(rec::process);
+		assertEquals(List.of((long)ProcessorState.CHECKPOINT_INTERVAL), rec.checkpointSequences);
+		
+		Recorder resumed = new Recorder(0);
+		resumed.restoreCheckpoint(ProcessorState.CHECKPOINT_INTERVAL, rec.checkpoints.get(0).get());
+		resumed.process(received(3000, ":alice!a@x PART #chan"));  // Would post nothing if the membership were lost
+		assertEquals(List.of("#chan@3000 R_PART|alice!a@x|other"), resumed.messages);
+		
+		ConnectionEvent ev = new ConnectionEvent.Closed();
+		ev.timestampUnixMs = 4000;
+		resumed.process(ev);
+		assertEquals(Optional.empty(), resumed.checkpoints.get(0));
+		assertEquals(List.of(ProcessorState.CHECKPOINT_INTERVAL + 2L), resumed.checkpointSequences);
+		assertEquals(ProcessorState.CHECKPOINT_INTERVAL + 2L, (long)resumed.progress.get(resumed.progress.size() - 1));
+	}
+	
+	
+	private static List<ConnectionEvent> joinedWithUsers(long time, String... nicknames) {
+		List<ConnectionEvent> result = new ArrayList<>();
+		ConnectionEvent ev = new ConnectionEvent.Opening("irc.example.net", 6667, "UTF-8");
+		ev.timestampUnixMs = time;
+		result.add(ev);
+		ev = new ConnectionEvent.LineSent("NICK me".getBytes(StandardCharsets.UTF_8));
+		ev.timestampUnixMs = time;
+		result.add(ev);
+		result.add(received(time, ":me!m@x JOIN #chan"));
+		for (String nick : nicknames)
+			result.add(received(time, ":" + nick + "!" + nick.charAt(0) + "@x JOIN #chan"));
+		return result;
+	}
+	
+	
+	private static ConnectionEvent received(long time, String line) {
+		ConnectionEvent ev = new ConnectionEvent.LineReceived(line.getBytes(StandardCharsets.UTF_8));
+		ev.timestampUnixMs = time;
+		return ev;
+	}
+	
+	
+	
+	private static final class Recorder extends ProcessorState {
+		
+		public List<String> messages = new ArrayList<>();
+		public List<Long> progress = new ArrayList<>();
+		public List<Long> checkpointSequences = new ArrayList<>();
+		public List<Optional<byte[]>> checkpoints = new ArrayList<>();
+		
+		
+		public Recorder(long watermark) {
+			super(0, 0, new File("unused.sqlite"), null, watermark);
+		}
+		
+		
+		@Override protected void emitMessage(int profileId, String windowDisplayName, long timestampUnixMs, String data) {
+			messages.add(windowDisplayName + "@" + timestampUnixMs + " " + data.replace('\n', '|'));
+		}
+		
+		
+		@Override protected void emitProgress(long nextSequence) {
+			progress.add(nextSequence);
+		}
+		
+		
+		@Override protected void emitCheckpoint(long nextSequence, Optional<byte[]> state) {
+			checkpointSequences.add(nextSequence);
+			checkpoints.add(state);
+		}
+		
+	}
+	
+}
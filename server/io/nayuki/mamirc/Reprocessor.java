@@ -0,0 +1,200 @@
+package io.nayuki.mamirc;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/*
+ * Rebuilds the processed_messages table by replaying every stored connection event
+ * through ConnectionState, without connecting to any IRC server. Profiles are replayed
+ * in parallel (the connections within one profile share message windows, so they must
+ * be replayed in order), and a single writer thread bulk-loads the resulting messages.
+ * The old messages are deleted and the new ones written in a single transaction, so if anything
+ * fails, the file keeps its old messages. Must not be run while the client itself is running
+ * on the same database file.
+ * With shards (see DatabaseShards), each file is reprocessed on its own, because
+ * the events and messages of a connection are always in the same file.
+ */
+final class Reprocessor {
+	
+	private final File configFile;  // The main file, for profile settings
+	private final File databaseFile;  // For events and messages
+	
+	private BlockingQueue<List<Message>> writeQueue = new ArrayBlockingQueue<>(WRITE_QUEUE_CAPACITY);
+	private volatile Exception writerException = null;
+	
+	private AtomicLong eventsReplayed = new AtomicLong();
+	private AtomicLong eventErrors = new AtomicLong();
+	private AtomicLong messagesWritten = new AtomicLong();
+	
+	
+	public Reprocessor(File mainFile, File dataFile) {
+		configFile = mainFile;
+		databaseFile = dataFile;
+	}
+	
+	
+	public void run() throws IOException, SQLException, InterruptedException, ExecutionException {
+		long startTime = System.nanoTime();
+		// All the messages are replaced, so those whose raw events retention has deleted would be lost
+		try (Database db = new Database(configFile)) {
+			for (Map.Entry<Integer,RetentionTask.Policy> entry : db.getRetentionPolicies().entrySet()) {
+				RetentionTask.Policy policy = entry.getValue();
+				if (policy.eventDays.isPresent() && (policy.messageDays.isEmpty() || policy.messageDays.get() > policy.eventDays.get()))
+					throw new IllegalStateException("Profile " + entry.getKey() + " keeps raw events for less time than processed messages, so reprocessing would lose messages");
+			}
+		}
+		
+		Map<Integer,List<Long>> profileConnections = new TreeMap<>();
+		try (Database db = new Database(databaseFile)) {
+			db.getConnectionProfiles().forEach((conId, profId) ->
+				profileConnections.computeIfAbsent(profId, k -> new ArrayList<>()).add(conId));
+		}
+		
+		Thread writer = new Thread(this::writer);
+		writer.start();
+		ForkJoinPool pool = new ForkJoinPool();
+		boolean ok = false;
+		try {
+			List<Callable<Void>> tasks = new ArrayList<>();
+			profileConnections.forEach((profId, conIds) -> tasks.add(() -> {
+				replayProfile(profId, conIds);
+				return null;
+			}));
+			for (Future<Void> f : pool.invokeAll(tasks))
+				f.get();
+			ok = true;
+		} finally {
+			pool.shutdown();
+			writeQueue.put(ok ? new ArrayList<>() : ABORT);  // Empty batch signals termination
+			writer.join();
+		}
+		if (writerException != null)
+			throw new ExecutionException(writerException);
+		
+		double seconds = (System.nanoTime() - startTime) / 1.0e9;
+		System.err.printf("Replayed %d events (%d errors) into %d messages in %.1f s (%.0f events/s, %.0f messages/s)%n",
+			eventsReplayed.get(), eventErrors.get(), messagesWritten.get(), seconds,
+			eventsReplayed.get() / seconds, messagesWritten.get() / seconds);
+	}
+	
+	
+	private void replayProfile(int profileId, List<Long> connectionIds) throws IOException, SQLException, InterruptedException {
+		try (Database db = new Database(databaseFile)) {
+			for (long conId : connectionIds) {
+				ReplayState state = new ReplayState(conId, profileId);
+				db.forEachConnectionEvent(conId, ev -> {
+					try {
+						state.handle(ev);
+					} catch (RuntimeException e) {  // Historical data may contain anything
+						eventErrors.incrementAndGet();
+					}
+					eventsReplayed.incrementAndGet();
+				});
+				state.flush();
+			}
+		}
+	}
+	
+	
+	private void writer() {
+		try (Database db = new Database(databaseFile)) {
+			db.beginImmediateTransaction();
+			db.deleteAllProcessedMessages();
+			long lastReportTime = System.nanoTime();
+			while (true) {
+				List<Message> batch = writeQueue.take();
+				if (batch == ABORT) {  // A replay failed, so keep the old messages
+					db.rollbackTransaction();
+					return;
+				}
+				if (batch.isEmpty())
+					break;
+				for (Message msg : batch)
+					db.addProcessedMessage(msg.profileId, msg.displayName, msg.timestampUnixMs, msg.data);
+				messagesWritten.addAndGet(batch.size());
+				
+				long now = System.nanoTime();
+				if (now - lastReportTime >= REPORT_INTERVAL_NS) {
+					System.err.printf("Progress: %d events replayed, %d messages written%n",
+						eventsReplayed.get(), messagesWritten.get());
+					lastReportTime = now;
+				}
+			}
+			db.commitTransaction();
+		} catch (IOException|SQLException|InterruptedException e) {
+			writerException = e;  // Closing the database rolls back the transaction
+			try {  // Keep draining so that producers don't block forever
+				while (!writeQueue.take().isEmpty());
+			} catch (InterruptedException ee) {}
+		}
+	}
+	
+	
+	private static final int WRITE_QUEUE_CAPACITY = 64;  // In batches
+	private static final int BATCH_SIZE = 1000;  // In messages
+	private static final long REPORT_INTERVAL_NS = 5_000_000_000L;
+	private static final List<Message> ABORT = new ArrayList<>();  // Signals failure; compared by identity
+	
+	
+	
+	// Replays events with no side effects other than collecting the processed messages.
+	private final class ReplayState extends ConnectionState {
+		
+		private List<Message> batch = new ArrayList<>();
+		
+		
+		public ReplayState(long connectionId, int profileId) {
+			super(connectionId, profileId, configFile);
+		}
+		
+		
+		@Override protected void postMessage(int profileId, String windowDisplayName, long timestampUnixMs, String data) {
+			Message msg = new Message();
+			msg.profileId = profileId;
+			msg.displayName = windowDisplayName;
+			msg.timestampUnixMs = timestampUnixMs;
+			msg.data = data;
+			batch.add(msg);
+			if (batch.size() >= BATCH_SIZE)
+				flush();
+		}
+		
+		
+		public void flush() {
+			if (batch.isEmpty())
+				return;
+			try {
+				writeQueue.put(batch);
+			} catch (InterruptedException e) {
+				throw new AssertionError(e);
+			}
+			batch = new ArrayList<>();
+		}
+		
+	}
+	
+	
+	
+	private static final class Message {
+		
+		public int profileId;
+		public String displayName;
+		public long timestampUnixMs;
+		public String data;
+		
+	}
+	
+}
@@ -0,0 +1,158 @@
+package io.nayuki.mamirc;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+
+/*
+ * Deletes old data according to each profile's retention policy (the profile_retention table),
+ * in every database file (see DatabaseShards). Each deletion is a small transaction followed by
+ * a short pause, so that the archivers never wait long for the write lock. Afterward, the freed
+ * pages are given back to the file system by incremental vacuuming, in small steps likewise.
+ *
+ * Raw events are deleted one whole connection at a time, and only for connections that have
+ * ended and have been fully processed, so every remaining connection can still be replayed from
+ * its start (by the processor or the reprocessor). Reprocessing cannot recreate messages whose
+ * events have been deleted, so the reprocessor refuses to run if any profile keeps its events for
+ * less time than its messages.
+ */
+final class RetentionTask implements Runnable {
+	
+	private final DatabaseShards shards;
+	private final Optional<Core> core;  // Present if this process owns the raw events
+	private final Optional<Archivers> archivers;  // Present if this process owns the processed messages
+	
+	private final Metrics.Counter deletedEvents;
+	private final Metrics.Counter deletedMessages;
+	private final Metrics.Counter vacuumedPages;
+	
+	
+	// In split mode, the connector deletes only raw events and the processor only processed messages. Each batch of
+	// deleted messages is counted as a commit of the given archivers, so that the web server's entity tags change.
+	public RetentionTask(DatabaseShards shards, Optional<Core> core, Optional<Archivers> archivers, Metrics metrics) {
+		this.shards = shards;
+		this.core = core;
+		this.archivers = archivers;
+		deletedEvents = metrics.newCounter("mamirc_retention_deleted_events_total", "Raw connection events deleted by retention policies");
+		deletedMessages = metrics.newCounter("mamirc_retention_deleted_messages_total", "Processed messages deleted by retention policies");
+		vacuumedPages = metrics.newCounter("mamirc_retention_vacuumed_pages_total", "Free database pages given back to the file system");
+	}
+	
+	
+	// Makes one pass over all the files. Meant to be scheduled periodically on its own thread.
+	public void run() {
+		try {
+			Map<Integer,Policy> policies;
+			try (Database db = new Database(shards.getMainFile())) {
+				policies = db.getRetentionPolicies();
+			}
+			if (policies.isEmpty())
+				return;
+			for (File file : shards.getAllFiles()) {
+				try (Database db = new Database(file)) {
+					for (Map.Entry<Integer,Policy> entry : policies.entrySet())
+						apply(db, entry.getKey(), entry.getValue());
+					vacuum(db);
+				}
+			}
+		} catch (IOException|SQLException|RuntimeException e) {
+			e.printStackTrace();  // Keep the schedule running
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();  // Shutting down
+		}
+	}
+	
+	
+	private void apply(Database db, int profileId, Policy policy) throws SQLException, InterruptedException {
+		long now = System.currentTimeMillis();
+		if (policy.eventDays.isPresent() && core.isPresent()) {
+			Set<Long> live = new HashSet<>();
+			synchronized(core.get()) {
+				for (IrcServerConnection con : core.get().getConnections())
+					live.add(con.connectionId);
+			}
+			// Without the messages here, a separate processor owns them
+			boolean separateProcessor = archivers.isEmpty();
+			for (long conId : db.getExpiredConnections(profileId, now - policy.eventDays.get() * MILLIS_PER_DAY, separateProcessor)) {
+				if (live.contains(conId))
+					continue;
+				while (true) {
+					db.beginImmediateTransaction();
+					int n = db.deleteConnectionEvents(conId, BATCH_SIZE);
+					db.commitTransaction();
+					deletedEvents.add(n);
+					if (n < BATCH_SIZE)
+						break;
+					Thread.sleep(BATCH_PAUSE_MS);
+				}
+			}
+		}
+		if (archivers.isEmpty())
+			return;
+		if (policy.numericReplyDays.isPresent())
+			deleteMessages(db, profileId, now - policy.numericReplyDays.get() * MILLIS_PER_DAY, true);
+		if (policy.messageDays.isPresent())
+			deleteMessages(db, profileId, now - policy.messageDays.get() * MILLIS_PER_DAY, false);
+	}
+	
+	
+	private void deleteMessages(Database db, int profileId, long cutoffUnixMs, boolean numericRepliesOnly) throws SQLException, InterruptedException {
+		while (true) {
+			db.beginImmediateTransaction();
+			int n = db.deleteExpiredMessages(profileId, cutoffUnixMs, numericRepliesOnly, BATCH_SIZE);
+			db.commitTransaction();
+			archivers.get().countOtherCommit();
+			deletedMessages.add(n);
+			if (n < BATCH_SIZE)
+				break;
+			Thread.sleep(BATCH_PAUSE_MS);
+		}
+	}
+	
+	
+	// Databases created before incremental auto-vacuum was the default are left alone.
+	private void vacuum(Database db) throws SQLException, InterruptedException {
+		if (!db.isIncrementalVacuumEnabled())
+			return;
+		long free = db.getFreePageCount();
+		while (free > 0) {
+			db.incrementalVacuum(VACUUM_PAGES);
+			long left = db.getFreePageCount();
+			if (left >= free)
+				break;
+			vacuumedPages.add(free - left);
+			free = left;
+			Thread.sleep(BATCH_PAUSE_MS);
+		}
+	}
+	
+	
+	private static final int BATCH_SIZE = 1000;  // Rows per transaction
+	private static final int VACUUM_PAGES = 1000;  // Pages per step
+	private static final long BATCH_PAUSE_MS = 50;
+	private static final long MILLIS_PER_DAY = 86_400_000L;
+	
+	
+	
+	public static final class Policy {
+		
+		// Each is an age in days, or empty to keep forever
+		public final Optional<Integer> eventDays;
+		public final Optional<Integer> messageDays;
+		public final Optional<Integer> numericReplyDays;
+		
+		
+		public Policy(Optional<Integer> eventDays, Optional<Integer> messageDays, Optional<Integer> numericReplyDays) {
+			this.eventDays = eventDays;
+			this.messageDays = messageDays;
+			this.numericReplyDays = numericReplyDays;
+		}
+		
+	}
+	
+}
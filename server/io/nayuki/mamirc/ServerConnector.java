@@ -0,0 +1,185 @@
+package io.nayuki.mamirc;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/*
+ * Opens a TCP connection to the first reachable server of a profile, in the style of Happy
+ * Eyeballs (RFC 8305). Every server is looked up in the background right away, and its addresses
+ * are interleaved by family (IPv6 first) and queued after those of the servers before it in the
+ * profile's order, as soon as its lookup finishes. So attempts on the first server start as soon
+ * as its own lookup is done, however slow the lookups of the fallback servers are. Attempts start
+ * one at a time in that order, but the next one starts after a short stagger delay without waiting
+ * for the previous one to fail, or immediately when it does fail. The first attempt to complete
+ * wins and the rest are abandoned. So a dead or blackholed address costs a fraction of a second,
+ * not a TCP timeout.
+ */
+final class ServerConnector {
+	
+	// Returns a connected channel in blocking mode, or throws the last error if every attempt failed.
+	public static Result connect(List<IrcServer> servers) throws IOException {
+		if (servers.isEmpty())
+			throw new IOException("No servers");
+		List<Result> candidates = new ArrayList<>();
+		IOException lastError = null;
+		Result winner = null;
+		try (Selector selector = Selector.open()) {
+			List<Future<InetAddress[]>> lookups = new ArrayList<>();
+			for (IrcServer serv : servers) {
+				lookups.add(RESOLVER.submit(() -> {
+					try {
+						return InetAddress.getAllByName(serv.hostname);
+					} finally {
+						selector.wakeup();  // Harmless if the selector is already closed
+					}
+				}));
+			}
+			try {
+				long deadline = System.nanoTime() + CONNECT_TIMEOUT_NS;
+				long nextStartTime = System.nanoTime();
+				int next = 0;
+				int active = 0;
+				int queuedServers = 0;  // Servers whose lookups are done and whose addresses are in candidates
+				while (winner == null) {
+					long now = System.nanoTime();
+					if (next == candidates.size() && queuedServers < servers.size() && lookups.get(queuedServers).isDone()) {
+						IrcServer serv = servers.get(queuedServers);
+						try {
+							List<InetAddress> v6 = new ArrayList<>();
+							List<InetAddress> v4 = new ArrayList<>();
+							for (InetAddress addr : getDone(lookups.get(queuedServers)))
+								(addr instanceof Inet6Address ? v6 : v4).add(addr);
+							for (int i = 0; i < Math.max(v6.size(), v4.size()); i++) {
+								if (i < v6.size())
+									candidates.add(new Result(serv, new InetSocketAddress(v6.get(i), serv.port)));
+								if (i < v4.size())
+									candidates.add(new Result(serv, new InetSocketAddress(v4.get(i), serv.port)));
+							}
+						} catch (IOException e) {  // Includes UnknownHostException
+							lastError = e;
+						}
+						queuedServers++;
+						continue;
+					}
+					if (next < candidates.size() && (now >= nextStartTime || active == 0)) {
+						Result cand = candidates.get(next);
+						next++;
+						nextStartTime = now + STAGGER_DELAY_NS;
+						cand.startTimeUnixMs = System.currentTimeMillis();
+						try {
+							cand.channel = SocketChannel.open();
+							cand.channel.configureBlocking(false);
+							if (cand.channel.connect(cand.address))
+								winner = cand;
+							else {
+								cand.channel.register(selector, SelectionKey.OP_CONNECT, cand);
+								active++;
+							}
+						} catch (IOException e) {
+							lastError = e;
+							closeQuietly(cand);
+						}
+						continue;
+					}
+					boolean awaitingLookup = next == candidates.size() && queuedServers < servers.size();
+					if (active == 0 && !awaitingLookup)
+						throw lastError != null ? lastError : new IOException("No addresses");
+					if (now >= deadline)
+						throw new SocketTimeoutException("Connect timed out");
+					
+					long wakeTime = next < candidates.size() ? Math.min(nextStartTime, deadline) : deadline;
+					selector.select(Math.max((wakeTime - now) / 1_000_000, 1));  // Also woken by each finished lookup
+					for (SelectionKey key : selector.selectedKeys()) {
+						Result cand = (Result)key.attachment();
+						try {
+							if (cand.channel.finishConnect()) {
+								winner = cand;
+								break;
+							}
+						} catch (IOException e) {
+							lastError = e;
+							key.cancel();
+							closeQuietly(cand);
+							active--;
+							nextStartTime = System.nanoTime();  // Start the next attempt right away
+						}
+					}
+					selector.selectedKeys().clear();
+				}
+			} finally {
+				for (Future<InetAddress[]> f : lookups)
+					f.cancel(false);  // The result of a lookup still running is discarded
+				for (Result cand : candidates) {
+					if (cand != winner)
+						closeQuietly(cand);
+				}
+			}
+		}
+		// Closing the selector deregistered the channel, so it can now block
+		winner.channel.configureBlocking(true);
+		return winner;
+	}
+	
+	
+	// Returns the result of the given finished lookup, or throws its error.
+	private static InetAddress[] getDone(Future<InetAddress[]> lookup) throws IOException {
+		try {
+			return lookup.get();
+		} catch (InterruptedException e) {
+			throw new AssertionError(e);  // Impossible, because it is done
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw cause instanceof IOException ? (IOException)cause : new IOException(cause);
+		}
+	}
+	
+	
+	private static void closeQuietly(Result cand) {
+		if (cand.channel != null) {
+			try {
+				cand.channel.close();
+			} catch (IOException e) {}
+		}
+	}
+	
+	
+	private static final long STAGGER_DELAY_NS = 250_000_000L;  // Recommended by RFC 8305
+	private static final long CONNECT_TIMEOUT_NS = 30_000_000_000L;  // For all lookups and attempts together
+	
+	private static final ExecutorService RESOLVER = Executors.newCachedThreadPool(r -> {
+		Thread result = new Thread(r, "DNS lookup");
+		result.setDaemon(true);
+		return result;
+	});
+	
+	
+	
+	public static final class Result {
+		
+		public final IrcServer server;
+		public final InetSocketAddress address;
+		public SocketChannel channel = null;
+		public long startTimeUnixMs;  // When this attempt started
+		
+		
+		Result(IrcServer server, InetSocketAddress address) {
+			this.server = server;
+			this.address = address;
+		}
+		
+	}
+	
+}
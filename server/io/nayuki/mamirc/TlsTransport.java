@@ -0,0 +1,306 @@
+package io.nayuki.mamirc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+
+/*
+ * TLS client over a connected SocketChannel in blocking mode, using an SSLEngine so that it
+ * does not depend on how the channel was connected. One thread may read while another writes.
+ * Each SSLContext below has a shared client session cache keyed by host and port, so reconnecting
+ * to a server resumes the previous session instead of running a full handshake. Concurrent
+ * handshakes are also limited, so that a mass reconnect cannot occupy every CPU at once,
+ * and each has a deadline, so that a stalled server cannot hold a handshake permit for long.
+ */
+final class TlsTransport {
+	
+	private final SocketChannel channel;
+	private final SSLEngine engine;
+	
+	// Only accessed by the reading thread (or by the constructor)
+	private ByteBuffer netIn;  // In write mode: received ciphertext not yet unwrapped
+	private ByteBuffer appIn;  // In read mode: unwrapped plaintext not yet read
+	
+	// Guarded by wrapLock, because both threads may need to wrap
+	private final Object wrapLock = new Object();
+	private ByteBuffer netOut;
+	
+	public final boolean isResumed;
+	public final long handshakeNanos;  // Excluding any wait for a handshake permit
+	
+	
+	public TlsTransport(SocketChannel channel, IrcServer server) throws IOException, InterruptedException {
+		if (server.tlsMode == IrcServer.TlsMode.UNSECURED)
+			throw new IllegalArgumentException("Server is unsecured");
+		if (!channel.isBlocking())
+			throw new IllegalArgumentException("Channel must be in blocking mode");
+		this.channel = channel;
+		boolean verify = server.tlsMode == IrcServer.TlsMode.TLS_WITH_CERTIFICATE_VERIFICATION;
+		engine = (verify ? VERIFYING_CONTEXT : NON_VERIFYING_CONTEXT).createSSLEngine(server.hostname, server.port);
+		engine.setUseClientMode(true);
+		if (verify) {
+			SSLParameters params = engine.getSSLParameters();
+			params.setEndpointIdentificationAlgorithm("HTTPS");  // Check the certificate against the hostname
+			engine.setSSLParameters(params);
+		}
+		SSLSession session = engine.getSession();
+		netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+		appIn = ByteBuffer.allocate(session.getApplicationBufferSize()).flip();
+		netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+		
+		HANDSHAKE_PERMITS.acquire();
+		long startTime = System.currentTimeMillis();
+		long startNanos = System.nanoTime();
+		// A blocking channel read has no timeout of its own, so closing the channel is what ends it
+		ScheduledFuture<?> deadline = HANDSHAKE_TIMER.schedule(() -> {
+			channel.close();
+			return null;
+		}, HANDSHAKE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		try {
+			handshake();
+		} catch (IOException e) {
+			if (deadline.cancel(false))
+				throw e;
+			throw new SSLException("TLS handshake timed out", e);
+		} finally {
+			HANDSHAKE_PERMITS.release();
+		}
+		if (!deadline.cancel(false))  // It fired just as the handshake finished
+			throw new SSLException("TLS handshake timed out");
+		handshakeNanos = System.nanoTime() - startNanos;
+		// A resumed session keeps the creation time of the session it resumes
+		isResumed = engine.getSession().getCreationTime() < startTime;
+	}
+	
+	
+	private void handshake() throws IOException {
+		engine.beginHandshake();
+		HandshakeStatus status = engine.getHandshakeStatus();
+		while (status != HandshakeStatus.FINISHED && status != HandshakeStatus.NOT_HANDSHAKING) {
+			switch (status) {
+				case NEED_WRAP:
+					status = wrap(ByteBuffer.allocate(0));
+					break;
+				case NEED_UNWRAP:
+				case NEED_UNWRAP_AGAIN:
+					status = unwrap();
+					break;
+				case NEED_TASK:
+					status = runTasks();
+					break;
+				default:
+					throw new AssertionError();
+			}
+		}
+		if (engine.isInboundDone() || engine.isOutboundDone())
+			throw new SSLException("TLS connection closed during handshake");
+	}
+	
+	
+	// Unwraps once, reading from the channel first if necessary.
+	private HandshakeStatus unwrap() throws IOException {
+		while (true) {
+			netIn.flip();
+			SSLEngineResult res = engine.unwrap(netIn, appIn.compact());
+			netIn.compact();
+			appIn.flip();
+			switch (res.getStatus()) {
+				case OK:
+					return res.getHandshakeStatus();
+				case BUFFER_UNDERFLOW:
+					if (!netIn.hasRemaining())
+						netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+					if (channel.read(netIn) == -1)
+						throw new SSLException("Connection closed during TLS record");
+					break;
+				case BUFFER_OVERFLOW:
+					appIn = grow(appIn.compact(), engine.getSession().getApplicationBufferSize()).flip();
+					break;
+				case CLOSED:
+					return res.getHandshakeStatus();
+				default:
+					throw new AssertionError();
+			}
+		}
+	}
+	
+	
+	// Wraps all of the given data (possibly none, during a handshake) and sends it. After the peer's
+	// close_notify, wrapping no data still sends the engine's close_notify reply, which lets read() end the stream.
+	private HandshakeStatus wrap(ByteBuffer src) throws IOException {
+		synchronized(wrapLock) {
+			while (true) {
+				netOut.clear();
+				SSLEngineResult res = engine.wrap(src, netOut);
+				switch (res.getStatus()) {
+					case OK:
+						break;
+					case BUFFER_OVERFLOW:
+						netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+						continue;
+					case CLOSED:
+						if (src.hasRemaining())
+							throw new SSLException("TLS connection closed");
+						break;  // Still send whatever was produced
+					default:
+						throw new AssertionError();
+				}
+				netOut.flip();
+				while (netOut.hasRemaining())
+					channel.write(netOut);
+				HandshakeStatus status = res.getHandshakeStatus();
+				if (status == HandshakeStatus.NEED_TASK)
+					status = runTasks();
+				if (res.getStatus() == SSLEngineResult.Status.CLOSED || !src.hasRemaining() && status != HandshakeStatus.NEED_WRAP)
+					return status;
+			}
+		}
+	}
+	
+	
+	private HandshakeStatus runTasks() {
+		for (Runnable task = engine.getDelegatedTask(); task != null; task = engine.getDelegatedTask())
+			task.run();
+		return engine.getHandshakeStatus();
+	}
+	
+	
+	// Returns -1 at the end of the stream, like InputStream.read().
+	private int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		while (!appIn.hasRemaining()) {
+			if (engine.isInboundDone())
+				return -1;
+			netIn.flip();
+			boolean empty = !netIn.hasRemaining();
+			netIn.compact();
+			if (empty && channel.read(netIn) == -1)
+				return -1;
+			HandshakeStatus status = unwrap();
+			// Post-handshake messages (e.g. TLS 1.3 key updates) may need a reply
+			while (status == HandshakeStatus.NEED_TASK || status == HandshakeStatus.NEED_WRAP) {
+				if (status == HandshakeStatus.NEED_TASK)
+					status = runTasks();
+				else
+					status = wrap(ByteBuffer.allocate(0));
+			}
+		}
+		int n = Math.min(len, appIn.remaining());
+		appIn.get(b, off, n);
+		return n;
+	}
+	
+	
+	public InputStream getInputStream() {
+		return new InputStream() {
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xFF);
+			}
+			
+			public int read(byte[] b, int off, int len) throws IOException {
+				return TlsTransport.this.read(b, off, len);
+			}
+		};
+	}
+	
+	
+	public OutputStream getOutputStream() {
+		return new OutputStream() {
+			public void write(int b) throws IOException {
+				write(new byte[]{(byte)b}, 0, 1);
+			}
+			
+			public void write(byte[] b, int off, int len) throws IOException {
+				TlsTransport.this.wrap(ByteBuffer.wrap(b, off, len));
+			}
+		};
+	}
+	
+	
+	public Socket getSocket() {
+		return channel.socket();
+	}
+	
+	
+	private static ByteBuffer grow(ByteBuffer buf, int minCapacity) {
+		ByteBuffer result = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + minCapacity));
+		buf.flip();
+		result.put(buf);
+		return result;
+	}
+	
+	
+	
+	/*---- Shared contexts ----*/
+	
+	private static final int SESSION_CACHE_SIZE = 1000;  // Sessions per context, more than the number of networks
+	private static final int SESSION_TIMEOUT_S = 86400;
+	
+	private static final SSLContext VERIFYING_CONTEXT;
+	private static final SSLContext NON_VERIFYING_CONTEXT;
+	
+	static {
+		try {
+			VERIFYING_CONTEXT = SSLContext.getInstance("TLS");
+			VERIFYING_CONTEXT.init(null, null, null);
+			NON_VERIFYING_CONTEXT = SSLContext.getInstance("TLS");
+			NON_VERIFYING_CONTEXT.init(null, new TrustManager[]{new TrustAllManager()}, null);
+		} catch (GeneralSecurityException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+		for (SSLContext ctx : new SSLContext[]{VERIFYING_CONTEXT, NON_VERIFYING_CONTEXT}) {
+			ctx.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+			ctx.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_S);
+		}
+	}
+	
+	private static final Semaphore HANDSHAKE_PERMITS = new Semaphore(Math.max(Runtime.getRuntime().availableProcessors(), 2));
+	
+	private static final long HANDSHAKE_TIMEOUT_MS = 30_000;
+	
+	private static final ScheduledExecutorService HANDSHAKE_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread result = new Thread(r, "TLS handshake timer");
+		result.setDaemon(true);
+		return result;
+	});
+	
+	
+	
+	private static final class TrustAllManager extends X509ExtendedTrustManager {
+		
+		public void checkClientTrusted(X509Certificate[] chain, String authType) {}
+		public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {}
+		public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {}
+		public void checkServerTrusted(X509Certificate[] chain, String authType) {}
+		public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) {}
+		public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {}
+		
+		public X509Certificate[] getAcceptedIssuers() {
+			return new X509Certificate[0];
+		}
+		
+	}
+	
+}
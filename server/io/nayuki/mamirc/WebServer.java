@@ -1,40 +1,70 @@
 package io.nayuki.mamirc;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import io.nayuki.json.Json;
 
 
 final class WebServer {
 	
-	private Core core;
+	private final DatabaseShards shards;
+	private final Archivers archivers;
+	private final Metrics metrics;
 	private HttpServer server;
 	private ExecutorService executor;
 	
+	// Entity tags are derived from these, so they must change whenever the database content changes.
+	private final String instanceTag = Long.toString(System.currentTimeMillis(), 36);
+	private AtomicLong databaseWrites = new AtomicLong();  // Writes performed by this web server itself
 	
-	public WebServer(Core core) throws IOException, SQLException {
-		this.core = core;
+	private final Metrics.Labeled<Metrics.Histogram> requestTime;
+	
+	
+	public WebServer(DatabaseShards shards, Archivers archivers, Metrics metrics) throws IOException, SQLException {
+		this.shards = shards;
+		this.archivers = archivers;
+		this.metrics = metrics;
 		
 		int port;
-		try (Database db = new Database(core.getDatabaseFile())) {
+		try (Database db = new Database(shards.getMainFile())) {
 			Optional<String> temp = db.getConfigurationValue("HTTP server port");
 			if (temp.isEmpty())
 				throw new IllegalStateException("Port missing from configuration table");
 			port = Integer.parseInt(temp.get());
 		}
 		server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+		requestTime = metrics.newLabeledHistogram("mamirc_http_request_seconds", "Time to handle one HTTP request",
+			"endpoint", MAX_ENDPOINT_LABELS, Metrics.LATENCY_BUCKETS_NS, Metrics.NANOSECONDS_TO_SECONDS);
+		
+		addContext("/message-windows.json", this::getMessageWindows);
+		addContext("/messages.json", this::getMessages);
+		addContext("/message-history.json", this::getMessageHistory);
+		addContext("/changes.json", this::getChanges);
+		addContext("/mark-read.json", this::markRead);
+		addContext("/search.json", this::searchMessages);
+		addContext("/archiver-status.json", this::getArchiverStatus);
 		
-		server.createContext("/message-windows.json", this::getMessageWindows);
-		server.createContext("/messages.json", this::getMessages);
+		server.createContext("/metrics", this::getMetrics);  // Not timed, so that scraping does not perturb the results
 		
 		executor = Executors.newFixedThreadPool(30);
 		server.setExecutor(executor);
@@ -42,6 +72,19 @@ final class WebServer {
 	}
 	
 	
+	private void addContext(String path, HttpHandler handler) {
+		Metrics.Histogram latency = requestTime.get(path);
+		server.createContext(path, he -> {
+			long startTime = System.nanoTime();
+			try {
+				handler.handle(he);
+			} finally {
+				latency.observeSince(startTime);
+			}
+		});
+	}
+	
+	
 	private void getMessageWindows(HttpExchange he) throws IOException {
 		try {
 			if (!he.getRequestMethod().equals("GET")) {
@@ -49,15 +92,16 @@ final class WebServer {
 				return;
 			}
 			
-			Object result;
-			try (Database db = new Database(core.getDatabaseFile())) {
-				result = db.listProfilesAndMessageWindows();
-			}
-			he.getResponseHeaders().add("Content-Type", "application/json");
-			he.getResponseHeaders().add("Cache-Control", "no-store");
-			he.sendResponseHeaders(HTTP_OK, UNKNOWN_LENGTH);
-			String json = Json.serialize(result);
-			he.getResponseBody().write(json.getBytes(StandardCharsets.UTF_8));
+			Optional<String> etag = Optional.of(makeEntityTag(he));
+			if (isNotModified(he, etag.get()))
+				return;
+			Object result = listProfilesAndMessageWindows();
+			if (acceptsMessagePack(he)) {
+				MessagePackWriter out = new MessagePackWriter();
+				out.writeValue(result);
+				sendMessagePack(he, out, etag);
+			} else
+				sendJson(he, result, etag);
 			
 		} catch (SQLException e) {
 			e.printStackTrace();
@@ -68,6 +112,7 @@ final class WebServer {
 	}
 	
 	
+	// If the client accepts MessagePack, each message is sent as a [sequence, timestampUnixMs, data, markedRead] array.
 	private void getMessages(HttpExchange he) throws IOException {
 		try {
 			if (!he.getRequestMethod().equals("GET")) {
@@ -80,16 +125,177 @@ final class WebServer {
 				values.put(kv[0], Long.parseLong(kv[1]));
 			}
 			
-			Object result;
-			try (Database db = new Database(core.getDatabaseFile())) {
-				result = db.getMessages(values.get("windowId"), values.get("sequenceStart"), values.get("sequenceEnd"));
+			Optional<File> file = shards.findWindowFile(values.get("windowId"));
+			if (file.isEmpty()) {
+				he.sendResponseHeaders(HTTP_NOT_FOUND, ZERO_LENGTH);
+				return;
+			}
+			
+			Optional<String> etag = Optional.of(makeEntityTag(he));
+			if (isNotModified(he, etag.get()))
+				return;
+			try (Database db = new Database(file.get())) {
+				if (acceptsMessagePack(he)) {
+					MessagePackWriter out = new MessagePackWriter();
+					db.writeMessages(values.get("windowId"), values.get("sequenceStart"), values.get("sequenceEnd"), out);
+					sendMessagePack(he, out, etag);
+				} else
+					sendJson(he, db.getMessages(values.get("windowId"), values.get("sequenceStart"), values.get("sequenceEnd")), etag);
 			}
-			he.getResponseHeaders().add("Content-Type", "application/json");
-			he.sendResponseHeaders(HTTP_OK, UNKNOWN_LENGTH);
-			String json = Json.serialize(result);
-			he.getResponseBody().write(json.getBytes(StandardCharsets.UTF_8));
 			
-		} catch (NullPointerException|NumberFormatException|SQLException e) {
+		} catch (NullPointerException|IllegalArgumentException|SQLException e) {
+			e.printStackTrace();
+			he.sendResponseHeaders(HTTP_INTERNAL_SERVER_ERROR, ZERO_LENGTH);
+		} finally {
+			he.close();
+		}
+	}
+	
+	
+	// Pages through a window's messages by cursor. Exactly one of these selects the page:
+	// "before" (newest messages older than that sequence), "after" (oldest messages newer
+	// than that sequence), "timestamp" (messages starting at that time), or none (newest messages).
+	// The response includes "nextCursor" when more messages exist in the same direction.
+	private void getMessageHistory(HttpExchange he) throws IOException {
+		try {
+			if (!he.getRequestMethod().equals("GET")) {
+				he.sendResponseHeaders(HTTP_METHOD_NOT_ALLOWED, ZERO_LENGTH);
+				return;
+			}
+			Map<String,String> params = parseQueryParameters(he);
+			long windowId = Long.parseLong(params.get("windowId"));
+			int limit = Math.min(Integer.parseInt(params.getOrDefault("limit", "100")), MAX_HISTORY_LIMIT);
+			if (limit <= 0)
+				throw new IllegalArgumentException();
+			Optional<File> file = shards.findWindowFile(windowId);
+			if (file.isEmpty()) {
+				he.sendResponseHeaders(HTTP_NOT_FOUND, ZERO_LENGTH);
+				return;
+			}
+			
+			Optional<String> etag = Optional.of(makeEntityTag(he));
+			if (isNotModified(he, etag.get()))
+				return;
+			List<Map<String,Object>> messages;
+			boolean backward = !params.containsKey("after") && !params.containsKey("timestamp");
+			try (Database db = new Database(file.get())) {
+				if (params.containsKey("after"))
+					messages = db.getMessagesAfter(windowId, Long.parseLong(params.get("after")), limit + 1);
+				else if (params.containsKey("timestamp")) {
+					Optional<Long> seq = db.findMessageSequenceAtTime(windowId, Long.parseLong(params.get("timestamp")));
+					messages = seq.isPresent() ? db.getMessagesAfter(windowId, seq.get() - 1, limit + 1) : new ArrayList<>();
+				} else
+					messages = db.getMessagesBefore(windowId, Long.parseLong(params.getOrDefault("before", Long.toString(Long.MAX_VALUE))), limit + 1);
+			}
+			
+			Map<String,Object> result = new HashMap<>();
+			if (messages.size() > limit) {  // Drop the extra row that was only fetched to detect more
+				messages.remove(backward ? 0 : limit);
+				result.put("nextCursor", messages.get(backward ? 0 : limit - 1).get("sequence"));
+			}
+			result.put("messages", messages);
+			sendJson(he, result, etag);
+			
+		} catch (IllegalArgumentException|SQLException e) {
+			e.printStackTrace();
+			he.sendResponseHeaders(HTTP_INTERNAL_SERVER_ERROR, ZERO_LENGTH);
+		} finally {
+			he.close();
+		}
+	}
+	
+	
+	// Returns the changes after the given change sequence, which a client gets initially from
+	// /message-windows.json and then from "nextCursor". The response has "nextCursor" if it is
+	// full, in which case the client should immediately ask for more.
+	private void getChanges(HttpExchange he) throws IOException {
+		try {
+			if (!he.getRequestMethod().equals("GET")) {
+				he.sendResponseHeaders(HTTP_METHOD_NOT_ALLOWED, ZERO_LENGTH);
+				return;
+			}
+			Map<String,String> params = parseQueryParameters(he);
+			String after = params.get("after");
+			if (after == null)
+				throw new IllegalArgumentException();
+			int limit = Math.min(Integer.parseInt(params.getOrDefault("limit", "1000")), MAX_CHANGES_LIMIT);
+			if (limit <= 0)
+				throw new IllegalArgumentException();
+			
+			Optional<String> etag = Optional.of(makeEntityTag(he));
+			if (isNotModified(he, etag.get()))
+				return;
+			Map<String,Object> result = new HashMap<>();
+			List<Map<String,Object>> changes = new ArrayList<>();
+			if (!shards.isSharded()) {
+				try (Database db = new Database(shards.getMainFile())) {
+					changes = db.getChangesAfter(Long.parseLong(after), limit);
+				}
+				if (changes.size() == limit)
+					result.put("nextCursor", changes.get(limit - 1).get("changeSequence"));
+			} else {
+				// Each file has its own change sequence, so the cursor is a composite, and the
+				// client must use "cursor" for its next request instead of the last changeSequence
+				Map<String,Long> cursor = parseShardCursor(after);
+				for (File file : shards.getAllFiles()) {
+					if (changes.size() >= limit)
+						break;
+					String key = shards.getShardKey(file);
+					List<Map<String,Object>> part;
+					try (Database db = new Database(file)) {
+						part = db.getChangesAfter(cursor.getOrDefault(key, 0L), limit - changes.size());
+					}
+					if (!part.isEmpty())
+						cursor.put(key, (Long)part.get(part.size() - 1).get("changeSequence"));
+					changes.addAll(part);
+				}
+				result.put("cursor", formatShardCursor(cursor));
+				if (changes.size() == limit)
+					result.put("nextCursor", formatShardCursor(cursor));
+			}
+			result.put("changes", changes);
+			sendJson(he, result, etag);
+			
+		} catch (IllegalArgumentException|IOException|SQLException e) {
+			e.printStackTrace();
+			he.sendResponseHeaders(HTTP_INTERNAL_SERVER_ERROR, ZERO_LENGTH);
+		} finally {
+			he.close();
+		}
+	}
+	
+	
+	// Advances the window's read pointer to the given sequence (exclusive), or to the newest message if omitted.
+	private void markRead(HttpExchange he) throws IOException {
+		try {
+			if (!he.getRequestMethod().equals("POST")) {
+				he.sendResponseHeaders(HTTP_METHOD_NOT_ALLOWED, ZERO_LENGTH);
+				return;
+			}
+			Map<String,String> params = parseQueryParameters(he);
+			long windowId = Long.parseLong(params.get("windowId"));
+			long sequenceEnd = Long.parseLong(params.getOrDefault("sequenceEnd", Long.toString(Long.MAX_VALUE)));
+			
+			Optional<File> file = shards.findWindowFile(windowId);
+			if (file.isEmpty()) {
+				he.sendResponseHeaders(HTTP_NOT_FOUND, ZERO_LENGTH);
+				return;
+			}
+			
+			Optional<Long> readSeq;
+			try (Database db = new Database(file.get())) {
+				readSeq = db.markMessagesRead(windowId, sequenceEnd);
+			}
+			databaseWrites.incrementAndGet();
+			if (readSeq.isEmpty()) {
+				he.sendResponseHeaders(HTTP_NOT_FOUND, ZERO_LENGTH);
+				return;
+			}
+			Map<String,Object> result = new HashMap<>();
+			result.put("readSequence", readSeq.get());
+			sendJson(he, result, Optional.empty());
+			
+		} catch (IllegalArgumentException|SQLException e) {
 			e.printStackTrace();
 			he.sendResponseHeaders(HTTP_INTERNAL_SERVER_ERROR, ZERO_LENGTH);
 		} finally {
@@ -98,6 +304,297 @@ final class WebServer {
 	}
 	
 	
+	// Without profile shards, the best matches come first, and "nextOffset" pages further. With shards, FTS5 ranks
+	// from different files cannot be compared, so the newest matches come first, and "nextCursor" (passed back
+	// as "before") pages further.
+	private void searchMessages(HttpExchange he) throws IOException {
+		try {
+			if (!he.getRequestMethod().equals("GET")) {
+				he.sendResponseHeaders(HTTP_METHOD_NOT_ALLOWED, ZERO_LENGTH);
+				return;
+			}
+			Map<String,String> params = parseQueryParameters(he);
+			String query = params.get("query");
+			int limit = Math.min(Integer.parseInt(params.getOrDefault("limit", "50")), MAX_SEARCH_LIMIT);
+			int offset = Integer.parseInt(params.getOrDefault("offset", "0"));
+			if (query == null || limit <= 0 || offset < 0)
+				throw new IllegalArgumentException();
+			
+			Optional<String> etag = Optional.of(makeEntityTag(he));
+			if (isNotModified(he, etag.get()))
+				return;
+			Optional<Integer> profileId = Optional.ofNullable(params.get("profileId")).map(Integer::valueOf);
+			Optional<Long> windowId = Optional.ofNullable(params.get("windowId")).map(Long::valueOf);
+			Optional<Long> timestampStart = Optional.ofNullable(params.get("timestampStart")).map(Long::valueOf);
+			Optional<Long> timestampEnd = Optional.ofNullable(params.get("timestampEnd")).map(Long::valueOf);
+			List<File> files = new ArrayList<>();
+			if (windowId.isPresent())
+				shards.findWindowFile(windowId.get()).ifPresent(files::add);
+			else if (profileId.isPresent())
+				shards.findProfileFile(profileId.get()).ifPresent(files::add);
+			else
+				files.addAll(shards.getAllFiles());
+			
+			List<Map<String,Object>> messages = new ArrayList<>();
+			Map<String,Object> result = new HashMap<>();
+			if (!shards.isSharded()) {
+				for (File file : files) {
+					try (Database db = new Database(file)) {
+						messages = db.searchMessages(query, profileId, windowId, timestampStart, timestampEnd, limit + 1, offset);
+					}
+				}
+				if (messages.size() > limit) {
+					messages.remove(limit);
+					result.put("nextOffset", offset + limit);
+				}
+			} else {
+				// Ranks are not comparable across files, so merge the newest limit+1 of each file by time instead
+				if (offset != 0)
+					throw new IllegalArgumentException("Offset not supported with profile shards");
+				Optional<long[]> before = Optional.ofNullable(params.get("before")).map(WebServer::parseSearchCursor);
+				for (File file : files) {
+					try (Database db = new Database(file)) {
+						messages.addAll(db.searchMessagesByTime(query, profileId, windowId, timestampStart, timestampEnd, before, limit + 1));
+					}
+				}
+				messages.sort(Comparator
+					.comparing((Map<String,Object> msg) -> (Long)msg.get("timestampUnixMs"))
+					.thenComparing(msg -> (Long)msg.get("windowId"))
+					.thenComparing(msg -> (Long)msg.get("sequence"))
+					.reversed());
+				if (messages.size() > limit) {
+					messages = new ArrayList<>(messages.subList(0, limit));
+					Map<String,Object> last = messages.get(limit - 1);
+					result.put("nextCursor", last.get("timestampUnixMs") + ":" + last.get("windowId") + ":" + last.get("sequence"));
+				}
+			}
+			for (Map<String,Object> msg : messages)
+				msg.remove("rank");  // Only comparable within one file
+			result.put("messages", messages);
+			sendJson(he, result, etag);
+			
+		} catch (IllegalArgumentException|SQLException e) {
+			e.printStackTrace();
+			he.sendResponseHeaders(HTTP_INTERNAL_SERVER_ERROR, ZERO_LENGTH);
+		} finally {
+			he.close();
+		}
+	}
+	
+	
+	// With shards, the profiles come from the main file, the windows of all files are merged
+	// in the same order as within one file, and the change sequence is a composite cursor.
+	@SuppressWarnings("unchecked")
+	private Map<String,Object> listProfilesAndMessageWindows() throws IOException, SQLException {
+		if (!shards.isSharded()) {
+			try (Database db = new Database(shards.getMainFile())) {
+				return db.listProfilesAndMessageWindows();
+			}
+		}
+		Map<String,Object> result = null;
+		List<Map<String,Object>> windows = new ArrayList<>();
+		Map<String,Long> cursor = new LinkedHashMap<>();
+		for (File file : shards.getAllFiles()) {
+			Map<String,Object> part;
+			try (Database db = new Database(file)) {
+				part = db.listProfilesAndMessageWindows();
+			}
+			if (result == null)  // The main file comes first
+				result = part;
+			windows.addAll((List<Map<String,Object>>)part.get("messageWindows"));
+			cursor.put(shards.getShardKey(file), (Long)part.get("changeSequence"));
+		}
+		windows.sort(Comparator
+			.comparing((Map<String,Object> win) -> (Long)win.get("lastTimestampUnixMs"), Comparator.nullsLast(Comparator.reverseOrder()))
+			.thenComparing(win -> (Long)win.get("id")));
+		result.put("messageWindows", windows);
+		result.put("changeSequence", formatShardCursor(cursor));
+		return result;
+	}
+	
+	
+	// A composite change cursor lists the change sequence of each file, like "main:12,3:40,5:7".
+	// A file that is missing from it (e.g. a new shard) starts from the beginning.
+	private static Map<String,Long> parseShardCursor(String s) {
+		Map<String,Long> result = new LinkedHashMap<>();
+		for (String part : s.split(",", -1)) {
+			String[] kv = part.split(":", 2);
+			if (kv.length != 2)
+				throw new IllegalArgumentException("Invalid cursor");
+			result.put(kv[0], Long.parseLong(kv[1]));
+		}
+		return result;
+	}
+	
+	
+	private static String formatShardCursor(Map<String,Long> cursor) {
+		StringBuilder sb = new StringBuilder();
+		cursor.forEach((key, seq) -> {
+			if (sb.length() > 0)
+				sb.append(',');
+			sb.append(key).append(':').append(seq);
+		});
+		return sb.toString();
+	}
+	
+	
+	// A search cursor is the position of the last message of the previous page, like "1700000000000:4294967296:15"
+	// for {timestampUnixMs, windowId, sequence}.
+	private static long[] parseSearchCursor(String s) {
+		String[] parts = s.split(":", -1);
+		if (parts.length != 3)
+			throw new IllegalArgumentException("Invalid cursor");
+		return new long[]{Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2])};
+	}
+	
+	
+	private static Map<String,String> parseQueryParameters(HttpExchange he) {
+		Map<String,String> result = new HashMap<>();
+		String query = he.getRequestURI().getRawQuery();
+		if (query != null) {
+			for (String part : query.split("&", -1)) {
+				String[] kv = part.split("=", 2);
+				if (kv.length == 2)
+					result.put(URLDecoder.decode(kv[0], StandardCharsets.UTF_8), URLDecoder.decode(kv[1], StandardCharsets.UTF_8));
+			}
+		}
+		return result;
+	}
+	
+	
+	private void getArchiverStatus(HttpExchange he) throws IOException {
+		try {
+			if (!he.getRequestMethod().equals("GET")) {
+				he.sendResponseHeaders(HTTP_METHOD_NOT_ALLOWED, ZERO_LENGTH);
+				return;
+			}
+			
+			Map<String,Object> result = new HashMap<>();
+			result.put("queueDepth", archivers.getQueueDepth());
+			result.put("memoryQueueBytes", archivers.getMemoryQueueBytes());
+			result.put("spilledItemsTotal", archivers.getSpilledItemsTotal());
+			result.put("spilledBytesTotal", archivers.getSpilledBytesTotal());
+			sendJson(he, result, Optional.empty());
+			
+		} finally {
+			he.close();
+		}
+	}
+	
+	
+	private void getMetrics(HttpExchange he) throws IOException {
+		try {
+			if (!he.getRequestMethod().equals("GET")) {
+				he.sendResponseHeaders(HTTP_METHOD_NOT_ALLOWED, ZERO_LENGTH);
+				return;
+			}
+			byte[] body = metrics.export().getBytes(StandardCharsets.UTF_8);
+			sendBody(he, "text/plain; version=0.0.4; charset=utf-8", body, Optional.empty());
+		} finally {
+			he.close();
+		}
+	}
+	
+	
+	/*---- Response helpers ----*/
+	
+	// The tag must be computed before querying the database. If a commit lands in between,
+	// the response carries an older tag than its content, which only causes one extra refetch.
+	// Each representation (by content type and encoding) gets a different tag, as strong tags must.
+	private String makeEntityTag(HttpExchange he) {
+		return String.format("\"%s.%d.%d%s%s\"", instanceTag, archivers.getCommitCount(),
+			databaseWrites.get(), acceptsMessagePack(he) ? "-msgpack" : "", acceptsGzip(he) ? "-gzip" : "");
+	}
+	
+	
+	// Sends a 304 response and returns true if the client's cached copy is current.
+	private static boolean isNotModified(HttpExchange he, String etag) throws IOException {
+		String header = he.getRequestHeaders().getFirst("If-None-Match");
+		if (header == null)
+			return false;
+		for (String tag : header.split(",", -1)) {
+			tag = tag.trim();
+			if (tag.startsWith("W/"))  // Weak comparison, as specified for If-None-Match
+				tag = tag.substring(2);
+			if (tag.equals(etag) || tag.equals("*")) {
+				addCacheHeaders(he.getResponseHeaders(), Optional.of(etag));
+				he.sendResponseHeaders(HTTP_NOT_MODIFIED, ZERO_LENGTH);
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	
+	private static void sendJson(HttpExchange he, Object result, Optional<String> etag) throws IOException {
+		byte[] body = Json.serialize(result).getBytes(StandardCharsets.UTF_8);
+		sendBody(he, "application/json", body, etag);
+	}
+	
+	
+	private static void sendMessagePack(HttpExchange he, MessagePackWriter body, Optional<String> etag) throws IOException {
+		sendBody(he, MESSAGEPACK_TYPE, body.toByteArray(), etag);
+	}
+	
+	
+	private static void sendBody(HttpExchange he, String contentType, byte[] body, Optional<String> etag) throws IOException {
+		Headers headers = he.getResponseHeaders();
+		headers.add("Content-Type", contentType);
+		addCacheHeaders(headers, etag);
+		if (acceptsGzip(he)) {
+			headers.add("Content-Encoding", "gzip");
+			he.sendResponseHeaders(HTTP_OK, UNKNOWN_LENGTH);
+			try (OutputStream out = new GZIPOutputStream(he.getResponseBody())) {
+				out.write(body);
+			}
+		} else {
+			he.sendResponseHeaders(HTTP_OK, body.length);
+			he.getResponseBody().write(body);
+		}
+	}
+	
+	
+	private static void addCacheHeaders(Headers headers, Optional<String> etag) {
+		headers.add("Vary", "Accept, Accept-Encoding");
+		if (etag.isPresent()) {
+			headers.add("ETag", etag.get());
+			headers.add("Cache-Control", "no-cache");  // Cacheable, but must be revalidated every time
+		} else
+			headers.add("Cache-Control", "no-store");
+	}
+	
+	
+	private static boolean acceptsGzip(HttpExchange he) {
+		return acceptsToken(he, "Accept-Encoding", "gzip");
+	}
+	
+	
+	// JSON remains the default; MessagePack is only sent when the client lists it explicitly.
+	private static boolean acceptsMessagePack(HttpExchange he) {
+		return acceptsToken(he, "Accept", MESSAGEPACK_TYPE);
+	}
+	
+	
+	// Returns true if the given header lists the given value without a zero quality.
+	private static boolean acceptsToken(HttpExchange he, String headerName, String value) {
+		String header = he.getRequestHeaders().getFirst(headerName);
+		if (header == null)
+			return false;
+		for (String part : header.split(",", -1)) {
+			String[] params = part.split(";", -1);
+			if (!params[0].trim().equalsIgnoreCase(value))
+				continue;
+			for (int i = 1; i < params.length; i++) {
+				String param = params[i].replace(" ", "");
+				if (param.matches("q=0(\\.0*)?"))
+					return false;
+			}
+			return true;
+		}
+		return false;
+	}
+	
+	
 	public void terminate() {
 		server.stop(0);
 		executor.shutdown();
@@ -106,9 +603,18 @@ final class WebServer {
 	
 	
 	private static final int HTTP_OK = 200;
+	private static final int HTTP_NOT_MODIFIED = 304;
+	private static final int HTTP_NOT_FOUND = 404;
 	private static final int HTTP_METHOD_NOT_ALLOWED = 405;
 	private static final int HTTP_INTERNAL_SERVER_ERROR = 500;
 	
+	private static final int MAX_SEARCH_LIMIT = 500;
+	private static final int MAX_HISTORY_LIMIT = 1000;
+	private static final int MAX_CHANGES_LIMIT = 10000;
+	private static final int MAX_ENDPOINT_LABELS = 20;
+	
+	private static final String MESSAGEPACK_TYPE = "application/msgpack";
+	
 	private static final int ZERO_LENGTH = -1;
 	private static final int UNKNOWN_LENGTH = 0;
 	
@@ -1,5 +1,7 @@
 SELECT '==== This is a custom text format where each consecutive pair of SQL statements is separated by two newline sequences. It is because the chosen SQLite JDBC driver does not support executing multiple statements in one call. ====';
 
+PRAGMA auto_vacuum = INCREMENTAL;
+
 PRAGMA journal_mode = WAL;
 
 BEGIN TRANSACTION;
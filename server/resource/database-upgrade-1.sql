@@ -0,0 +1,25 @@
+SELECT '==== Full-text index over processed messages. It stores no text of its own, and the archiver maintains it in the same transaction as each message insertion. Its content rowid is an explicit message ID, because the implicit rowid of a table without an INTEGER PRIMARY KEY can be renumbered by VACUUM, which would silently detach the index from its messages. The table is rebuilt with each message ID equal to its old rowid. ====';
+
+CREATE TABLE processed_messages_new(
+	message_id         INTEGER NOT NULL  PRIMARY KEY                ,
+	window_id          INTEGER NOT NULL  REFERENCES message_windows,
+	sequence           INTEGER NOT NULL  CHECK(sequence >= 0)      ,
+	timestamp_unix_ms  INTEGER NOT NULL                            ,
+	data               TEXT    NOT NULL                            ,
+	marked_read        INTEGER NOT NULL  CHECK(marked_read in(0,1)),
+	UNIQUE(window_id, sequence)                                    );
+
+INSERT INTO processed_messages_new(message_id, window_id, sequence, timestamp_unix_ms, data, marked_read)
+	SELECT rowid, window_id, sequence, timestamp_unix_ms, data, marked_read FROM processed_messages;
+
+DROP TABLE processed_messages;
+
+ALTER TABLE processed_messages_new RENAME TO processed_messages;
+
+CREATE VIRTUAL TABLE processed_messages_fts USING fts5(
+	data,
+	content='processed_messages',
+	content_rowid='message_id',
+	tokenize='unicode61 remove_diacritics 2');
+
+INSERT INTO processed_messages_fts(processed_messages_fts) VALUES ('rebuild');
@@ -0,0 +1,13 @@
+SELECT '==== Per-window read pointers. Messages with sequence < read_sequence are read, and next_sequence is one past the newest message. The per-row marked_read column is no longer maintained; use the view below to get the read state per row. ====';
+
+ALTER TABLE message_windows ADD COLUMN next_sequence INTEGER NOT NULL DEFAULT 0 CHECK(next_sequence >= 0);
+
+ALTER TABLE message_windows ADD COLUMN read_sequence INTEGER NOT NULL DEFAULT 0 CHECK(read_sequence >= 0);
+
+UPDATE message_windows SET
+	next_sequence = (SELECT ifnull(max(sequence)+1,0) FROM processed_messages WHERE processed_messages.window_id=message_windows.window_id),
+	read_sequence = (SELECT ifnull(max(sequence)+1,0) FROM processed_messages WHERE processed_messages.window_id=message_windows.window_id and marked_read=1);
+
+CREATE VIEW processed_messages_with_read_state AS
+	SELECT processed_messages.window_id AS window_id, sequence, timestamp_unix_ms, data, (sequence < read_sequence) AS marked_read
+	FROM processed_messages JOIN message_windows ON processed_messages.window_id=message_windows.window_id;
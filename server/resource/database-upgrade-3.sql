@@ -0,0 +1,9 @@
+SELECT '==== Materialized activity summary for each message window, maintained by the archiver in the same statement that advances next_sequence. Both columns are null while the window has no messages. ====';
+
+ALTER TABLE message_windows ADD COLUMN last_timestamp_unix_ms INTEGER;
+
+ALTER TABLE message_windows ADD COLUMN last_message_preview TEXT;
+
+UPDATE message_windows SET
+	last_timestamp_unix_ms = (SELECT timestamp_unix_ms FROM processed_messages WHERE processed_messages.window_id=message_windows.window_id and sequence=message_windows.next_sequence-1),
+	last_message_preview = (SELECT substr(data,1,200) FROM processed_messages WHERE processed_messages.window_id=message_windows.window_id and sequence=message_windows.next_sequence-1);
@@ -0,0 +1,4 @@
+SELECT '==== Index for jumping to a point in time within a message window. ====';
+
+CREATE INDEX processed_messages_index_0 ON processed_messages(
+	window_id, timestamp_unix_ms, sequence);
@@ -0,0 +1,7 @@
+SELECT '==== Log of changes visible to clients, in the order they happened, so that a client can catch up from its last seen change_sequence. AUTOINCREMENT guarantees that sequence numbers are never reused, even after old rows are deleted. For kind message, sequence is the new message; for read, it is the new read_sequence; for window, it is null. ====';
+
+CREATE TABLE changes(
+	change_sequence  INTEGER NOT NULL  PRIMARY KEY AUTOINCREMENT                ,
+	kind             TEXT    NOT NULL  CHECK(kind in ('message','window','read')),
+	window_id        INTEGER NOT NULL  REFERENCES message_windows               ,
+	sequence         INTEGER                                                    );
@@ -0,0 +1,12 @@
+SELECT '==== Progress of a separate processor through the raw events of each connection opened by a connector process. Every event below next_sequence has had its processed messages written, so a restarted processor only emits messages from there on. ====';
+
+CREATE TABLE processor_progress(
+	connection_id  INTEGER NOT NULL  PRIMARY KEY  REFERENCES connections,
+	next_sequence  INTEGER NOT NULL  CHECK(next_sequence >= 0)          );
+
+SELECT '==== Checkpoints of the in-memory state that a separate processor builds for each connection, so that a restarted processor replays only the raw events from next_sequence on instead of all of them. The state is the serialized form from ConnectionState.saveCheckpoint(). ====';
+
+CREATE TABLE processor_checkpoints(
+	connection_id  INTEGER NOT NULL  PRIMARY KEY  REFERENCES connections,
+	next_sequence  INTEGER NOT NULL  CHECK(next_sequence >= 0)          ,
+	state          BLOB    NOT NULL                                     );
@@ -0,0 +1,10 @@
+SELECT '==== Retention policy per profile, applied by a background task. Each column is an age in days, or null to keep forever. Raw connection events are deleted a whole ended connection at a time, so that every remaining connection can still be replayed from its start; numeric_reply_days applies to R_RPL messages, and message_days to all messages. Only new databases use incremental auto-vacuum, because switching an existing one needs a full VACUUM. The index on changes is for deleting the changes of the messages that a policy deletes. ====';
+
+CREATE TABLE profile_retention(
+	profile_id          INTEGER NOT NULL  PRIMARY KEY REFERENCES irc_network_profiles,
+	event_days          INTEGER           CHECK(event_days > 0)                      ,
+	message_days        INTEGER           CHECK(message_days > 0)                    ,
+	numeric_reply_days  INTEGER           CHECK(numeric_reply_days > 0)              );
+
+CREATE INDEX changes_index_0 ON changes(
+	window_id, sequence);